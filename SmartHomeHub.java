@@ -1,41 +1,201 @@
-import java.math.BigInteger;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.ToIntFunction;
+import java.util.zip.CRC32;
 
 public class SmartHomeHub {
 
     private final short hubAddress;
-    private URL serverURL;
-    private BigInteger whoIsHereTimestamp = BigInteger.valueOf(-1);
-    private BigInteger currentTimestamp = BigInteger.valueOf(0);
-    private Queue<Payload> sentQueue = new ArrayDeque<>();
-    private Map<Short, BigInteger> waitingResponses = new HashMap<>();
-    private Map<Short, Device> devices = new HashMap<>();
-    private BigInteger serialCounter = BigInteger.valueOf(1);
+    private final HubTransport transport;
+    private final Options options;
+    // Шарды обработки ответа; null в однопоточном режиме
+    private final Shards shards;
+    // Файл снимка состояния и его фоновая запись; null, если снимки не включены
+    private SnapshotFile snapshot;
+    private SnapshotWriter snapshotWriter;
+    // Буфер, в который кодируется следующий снимок; меняется местами с буфером потока записи
+    private EncodeBuffer snapshotBuffer = new EncodeBuffer();
+    private int responsesSinceSnapshot;
+    // Устройства из снимка, которые нужно перепроверить после первого TICK
+    private List<Device> restoredDevices;
+    // Журнал пакетов; null, если журнал не включён
+    private Journal journal;
+    final Metrics metrics = new Metrics();
+    // Код возврата; RUNNING, пока хаб работает
+    private int exitCode = RUNNING;
+    private static final int RUNNING = -1;
+    // Буферы запросов и ответов сервера переиспользуются между обменами; вторая пара нужна конвейерному режиму
+    private final EncodeBuffer[] requests = {new EncodeBuffer(), new EncodeBuffer()};
+    private final ResponseBuffer[] responses = {new ResponseBuffer(), new ResponseBuffer()};
+    private final PacketStreamDecoder packetDecoder = new PacketStreamDecoder();
+    // Входящий пакет и тело TICK, переиспользуемые при разборе
+    private final Payload inboundPayload = new Payload();
+    private final Payload.CmdBodyTimer inboundTimer = new Payload.CmdBodyTimer();
+    // Адреса из отправленного запроса, время отправки которых станет известно после разбора текущего ответа
+    private short[] deferredPending = new short[64];
+    private int deferredPendingCount;
+    private long whoIsHereTimestamp = -1;
+    private long currentTimestamp = 0;
+    final Queue<Payload> sentQueue = new ArrayDeque<>();
+    private final PendingResponses waitingResponses = new PendingResponses();
+    final DeviceRegistry devices = new DeviceRegistry();
+    private long serialCounter = 1;
+    // Интрузивный список устройств, обновлённых в текущем ответе (в порядке первого обновления)
+    private Device updatedHead;
+    private Device updatedTail;
+    // Интрузивный список целей, получивших команду в текущем цикле (в порядке первой команды)
+    private Device intentHead;
+    private Device intentTail;
+    // Датчики, триггеры которых выдерживают условие; перепроверяются на следующем ответе
+    private final ArrayList<EnvSensor> dwellingSensors = new ArrayList<>();
+    // Датчики, приславшие STATUS в текущем ответе, для записи истории
+    private final ArrayList<EnvSensor> historyQueue = new ArrayList<>();
     public static final short BROADCASTING_ADDRESS = 0x3FFF;
+    // Время, за которое устройство обязано ответить на запрос, мс
+    private static final long RESPONSE_TIMEOUT = 300;
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0).asReadOnlyBuffer();
+    // Длина тела пакета хранится в одном байте
+    private static final int MAX_PAYLOAD_SIZE = 255;
+    private static final int MAX_PACKET_SIZE = MAX_PAYLOAD_SIZE + 2;
 
-    static class Packet {
-        byte length;
-        byte[] payload;
-        byte crc8;
+    /**
+     * CRC-8 с полиномом 0x1D, начальное значение 0
+     * <p>
+     * Считается по таблице на 256 значений; длинные участки обрабатываются по 8 байт за шаг (slicing-by-8)
+     * </p>
+     */
+    static final class Crc8 {
+        private static final int POLYNOMIAL = 0x1D;
+        // Участки короче этой длины считаются побайтно
+        private static final int SLICING_THRESHOLD = 16;
 
-        @Override
-        public String toString() {
-            return "Packet{" +
-                    "length=" + length +
-                    ", payload=" + Arrays.toString(payload) +
-                    ", crc8=" + crc8 +
-                    '}';
+        // TABLES[k][x] - CRC байта x, за которым следуют k нулевых байт
+        private static final byte[][] TABLES = new byte[8][256];
+
+        static {
+            for (int x = 0; x < 256; x++) {
+                int crc = x;
+                for (int j = 0; j < 8; j++) {
+                    crc = (crc & 0x80) != 0 ? (crc << 1) ^ POLYNOMIAL : crc << 1;
+                }
+                TABLES[0][x] = (byte) crc;
+            }
+            for (int k = 1; k < TABLES.length; k++) {
+                for (int x = 0; x < 256; x++) {
+                    TABLES[k][x] = TABLES[0][TABLES[k - 1][x] & 0xFF];
+                }
+            }
+        }
+
+        private Crc8() {
+        }
+
+        /**
+         * Подсчёт контрольной суммы участка массива
+         *
+         * @param bytes  массив
+         * @param offset начало участка
+         * @param length длина участка
+         * @return контрольная сумма
+         */
+        static byte compute(byte[] bytes, int offset, int length) {
+            int crc = 0;
+            int i = offset;
+            int end = offset + length;
+            if (length >= SLICING_THRESHOLD) {
+                for (int last = end - 8; i <= last; i += 8) {
+                    crc = TABLES[7][(crc ^ bytes[i]) & 0xFF]
+                            ^ TABLES[6][bytes[i + 1] & 0xFF]
+                            ^ TABLES[5][bytes[i + 2] & 0xFF]
+                            ^ TABLES[4][bytes[i + 3] & 0xFF]
+                            ^ TABLES[3][bytes[i + 4] & 0xFF]
+                            ^ TABLES[2][bytes[i + 5] & 0xFF]
+                            ^ TABLES[1][bytes[i + 6] & 0xFF]
+                            ^ TABLES[0][bytes[i + 7] & 0xFF];
+                }
+            }
+            for (; i < end; i++) {
+                crc = TABLES[0][(crc ^ bytes[i]) & 0xFF];
+            }
+            return (byte) crc;
+        }
+
+        /**
+         * Подсчёт контрольной суммы участка буфера
+         * <p>
+         * Чтение абсолютное: позиция и лимит буфера не меняются
+         * </p>
+         *
+         * @param buffer буфер
+         * @param offset начало участка
+         * @param length длина участка
+         * @return контрольная сумма
+         */
+        static byte compute(ByteBuffer buffer, int offset, int length) {
+            if (buffer.hasArray()) {
+                return compute(buffer.array(), buffer.arrayOffset() + offset, length);
+            }
+            int crc = 0;
+            int i = offset;
+            int end = offset + length;
+            // getLong читает байты по порядку только в big-endian буфере
+            if (length >= SLICING_THRESHOLD && buffer.order() == ByteOrder.BIG_ENDIAN) {
+                for (int last = end - 8; i <= last; i += 8) {
+                    long word = buffer.getLong(i);
+                    crc = TABLES[7][(crc ^ (int) (word >>> 56)) & 0xFF]
+                            ^ TABLES[6][(int) (word >>> 48) & 0xFF]
+                            ^ TABLES[5][(int) (word >>> 40) & 0xFF]
+                            ^ TABLES[4][(int) (word >>> 32) & 0xFF]
+                            ^ TABLES[3][(int) (word >>> 24) & 0xFF]
+                            ^ TABLES[2][(int) (word >>> 16) & 0xFF]
+                            ^ TABLES[1][(int) (word >>> 8) & 0xFF]
+                            ^ TABLES[0][(int) word & 0xFF];
+                }
+            }
+            for (; i < end; i++) {
+                crc = TABLES[0][(crc ^ buffer.get(i)) & 0xFF];
+            }
+            return (byte) crc;
         }
     }
 
     static class Payload {
         short src; // 14-битный адрес отправителя
         short dst; // 14-битный адрес получателя, 0x3FFF - широковещательный адрес
-        BigInteger serial; // порядковый номер пакета, нумерация с 1
+        long serial; // порядковый номер пакета, нумерация с 1
         byte dev_type; // тип устройства, отправившего пакет
         byte cmd; // Команда
         Payload.CmdBody cmd_body; // Тело команды
@@ -54,7 +214,7 @@ public class SmartHomeHub {
             return this;
         }
 
-        public Payload setSerial(BigInteger serial) {
+        public Payload setSerial(long serial) {
             this.serial = serial;
             return this;
         }
@@ -80,13 +240,14 @@ public class SmartHomeHub {
         static class CmdBodyDevice extends CmdBody {
             String dev_name = "";
 
-            byte[] dev_props = new byte[0];
+            // Окно над буфером ответа, действительно только во время обработки пакета
+            ByteBuffer dev_props = EMPTY_BUFFER;
 
             @Override
             public String toString() {
                 return "CmdBodyDevice{" +
                         "dev_name='" + dev_name + '\'' +
-                        ", dev_props=" + Arrays.toString(dev_props) +
+                        ", dev_props=" + dev_props.remaining() + " bytes" +
                         '}';
             }
         }
@@ -96,7 +257,7 @@ public class SmartHomeHub {
         }
 
         static class CmdBodyTimer extends CmdBody {
-            BigInteger timestamp;
+            long timestamp;
 
             @Override
             public String toString() {
@@ -127,7 +288,7 @@ public class SmartHomeHub {
                     dst == payload.dst &&
                     dev_type == payload.dev_type &&
                     cmd == payload.cmd &&
-                    Objects.equals(serial, payload.serial) &&
+                    serial == payload.serial &&
                     Objects.equals(cmd_body, payload.cmd_body);
         }
 
@@ -137,10 +298,71 @@ public class SmartHomeHub {
         }
     }
 
+    /**
+     * Ссылка на управляемое устройство
+     * <p>
+     * Имя цели разрешается один раз при декодировании устройства-источника, дальше ссылку
+     * поддерживает реестр: связывает при появлении устройства с таким именем и сбрасывает при его удалении
+     * </p>
+     */
+    static class TargetSlot {
+        final String name;
+        Device device;
+        // Позиция в списке ссылок на это имя в реестре, чтобы убирать ссылку за O(1)
+        int index = -1;
+
+        TargetSlot(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static final TargetSlot[] NO_TARGETS = new TargetSlot[0];
+    private static final byte NO_INTENT = -1;
+    // Типы датчиков EnvSensor: температура, влажность, освещённость, загрязнение воздуха
+    private static final int SENSOR_TYPES = 4;
+    // Состояния триггера: взведён, выдерживает условие, сработал и ждёт выхода из полосы гистерезиса
+    private static final byte TRIGGER_ARMED = 0;
+    private static final byte TRIGGER_PENDING = 1;
+    private static final byte TRIGGER_FIRED = 2;
+
     abstract class Device {
         short address;
         String name;
         boolean updated = false;
+        // Следующее устройство в списке обновлённых
+        Device nextUpdated;
+        // Устройства, которыми управляет это устройство (цели переключателя или триггеров)
+        TargetSlot[] targets = NO_TARGETS;
+        // Состояние, которое нужно установить по итогам текущего цикла (NO_INTENT - команды нет)
+        byte intent = NO_INTENT;
+        // Следующее устройство в списке команд текущего цикла
+        Device nextIntent;
+        // Отправленное, но ещё не подтверждённое состояние (NO_INTENT - нет такой команды)
+        byte commanded = NO_INTENT;
+        // Запросы к устройству, на которые ещё не пришёл STATUS
+        int requestsInFlight;
+
+        /**
+         * Пометить устройство обновлённым и поставить в очередь на обработку
+         */
+        void markUpdated() {
+            if (updated) {
+                return;
+            }
+            updated = true;
+            if (updatedTail == null) {
+                updatedHead = this;
+            } else {
+                updatedTail.nextUpdated = this;
+            }
+            updatedTail = this;
+        }
+
         abstract DEVICE_TYPES_ENUM getType();
         abstract void setData(ByteBuffer buffer);
     }
@@ -173,12 +395,9 @@ public class SmartHomeHub {
 
         @Override
         void setData(ByteBuffer buffer) {
-            updated = true;
             status = buffer.get() == 1;
         }
 
-        List<String> devicesNames = new ArrayList<>();
-
         @Override
         DEVICE_TYPES_ENUM getType() {
             return DEVICE_TYPES_ENUM.Switch;
@@ -190,7 +409,7 @@ public class SmartHomeHub {
                     "status=" + status +
                     ", address=" + address +
                     ", name='" + name + '\'' +
-                    ", devicesNames=" + devicesNames +
+                    ", devicesNames=" + Arrays.toString(targets) +
                     '}';
         }
     }
@@ -219,7 +438,7 @@ public class SmartHomeHub {
     }
 
     class EnvSensor extends Device {
-        public EnvSensor(Short address, String name, byte sensors, byte[] triggersBytes) {
+        public EnvSensor(Short address, String name, byte sensors, ByteBuffer buffer) {
             this.address = address;
             this.name = name;
             // Определяем какие сенсоры есть
@@ -229,8 +448,7 @@ public class SmartHomeHub {
             airPollution = ((sensors & 0x8) == 0x8) ? 0 : -1;
 
             // Определяем триггеры
-            if (triggersBytes.length > 0) {
-                var buffer = ByteBuffer.wrap(triggersBytes);
+            if (buffer.hasRemaining()) {
                 var triggersCount = buffer.get();
                 for (int i = 0; i < triggersCount; i++) {
                     var trigger = new Trigger();
@@ -243,12 +461,25 @@ public class SmartHomeHub {
                     // Следующие 2 бита - тип сенсора
                     trigger.sensorType = (byte) ((op & 0x0C) >> 2);
                     // Значение триггера
-                    trigger.value = readULEB128(buffer).intValue();
+                    trigger.value = (int) readULEB128(buffer);
                     // Имя триггера
-                    trigger.name = decodeStringFromBytes(buffer);
+                    trigger.target = new TargetSlot(decodeStringFromBytes(buffer));
+                    // Гистерезис и выдержка в протоколе не передаются, они берутся из параметров запуска
+                    var settings = options.triggerSettings.get(name + ":" + i);
+                    trigger.hysteresis = settings != null ? (int) settings[0] : options.triggerHysteresis;
+                    trigger.dwell = settings != null ? settings[1] : options.triggerDwell;
                     triggers.add(trigger);
                 }
             }
+            targets = new TargetSlot[triggers.size()];
+            for (int i = 0; i < targets.length; i++) {
+                targets[i] = triggers.get(i).target;
+            }
+            fired = new int[triggers.size()];
+            triggerStates = new byte[triggers.size()];
+            pendingSince = new long[triggers.size()];
+            pending = new int[triggers.size()];
+            compileTriggers();
         }
 
         // Температура
@@ -259,32 +490,254 @@ public class SmartHomeHub {
         int illumination;
         // Загрязненность воздуха (PM2.5)
         int airPollution;
+        // Датчик уже прислал показания
+        boolean reported;
+        // Слот в колоночном хранилище показаний или -1, если хранилище выключено
+        int slot = -1;
+        // Ряды истории показаний по типу датчика, -1 - STATUS ещё не было или ряда не хватило
+        final int[] series = {-1, -1, -1, -1};
+        // Датчик уже стоит в очереди записи истории текущего ответа
+        boolean historyQueued;
 
         // Триггеры
         List<Trigger> triggers = new ArrayList<>();
 
+        // Скомпилированные триггеры по типу датчика: пороги по возрастанию и номера триггеров,
+        // отдельно для условий "больше" и "меньше"
+        private final int[][] moreThresholds = new int[SENSOR_TYPES][];
+        private final int[][] moreTriggers = new int[SENSOR_TYPES][];
+        private final int[][] lessThresholds = new int[SENSOR_TYPES][];
+        private final int[][] lessTriggers = new int[SENSOR_TYPES][];
+        // Уровни взвода по возрастанию и номера триггеров: порог минус гистерезис для "больше",
+        // порог плюс гистерезис для "меньше"
+        private final int[][] moreRearmLevels = new int[SENSOR_TYPES][];
+        private final int[][] moreRearmTriggers = new int[SENSOR_TYPES][];
+        private final int[][] lessRearmLevels = new int[SENSOR_TYPES][];
+        private final int[][] lessRearmTriggers = new int[SENSOR_TYPES][];
+        // Состояние каждого триггера и время TICK, с которого выдерживается его условие
+        private final byte[] triggerStates;
+        private final long[] pendingSince;
+        // Триггеры, выдерживающие условие
+        private final int[] pending;
+        private int pendingCount;
+        // Показания на момент последней проверки триггеров
+        private final int[] checkedReadings = new int[SENSOR_TYPES];
+        private boolean checked;
+        // Номера сработавших триггеров последней проверки
+        final int[] fired;
+
         @Override
         DEVICE_TYPES_ENUM getType() {
             return DEVICE_TYPES_ENUM.EnvSensor;
         }
 
+        /**
+         * Показание датчика по типу
+         *
+         * @param sensorType тип датчика
+         * @return показание или -1, если датчика нет
+         */
+        int reading(int sensorType) {
+            return switch (sensorType) {
+                case 0 -> temperature;
+                case 1 -> humidity;
+                case 2 -> illumination;
+                case 3 -> airPollution;
+                default -> -1;
+            };
+        }
+
+        /**
+         * Раскладка триггеров по типу датчика и направлению сравнения, пороги и уровни взвода по возрастанию
+         */
+        private void compileTriggers() {
+            ToIntFunction<Trigger> threshold = trigger -> trigger.value;
+            ToIntFunction<Trigger> rearmLevel = Trigger::rearmLevel;
+            for (int type = 0; type < SENSOR_TYPES; type++) {
+                moreTriggers[type] = sortTriggers(type, true, threshold);
+                moreThresholds[type] = levels(moreTriggers[type], threshold);
+                lessTriggers[type] = sortTriggers(type, false, threshold);
+                lessThresholds[type] = levels(lessTriggers[type], threshold);
+                moreRearmTriggers[type] = sortTriggers(type, true, rearmLevel);
+                moreRearmLevels[type] = levels(moreRearmTriggers[type], rearmLevel);
+                lessRearmTriggers[type] = sortTriggers(type, false, rearmLevel);
+                lessRearmLevels[type] = levels(lessRearmTriggers[type], rearmLevel);
+            }
+        }
+
+        private int[] sortTriggers(int type, boolean more, ToIntFunction<Trigger> level) {
+            var indexes = new ArrayList<Integer>();
+            for (int i = 0; i < triggers.size(); i++) {
+                var trigger = triggers.get(i);
+                if (trigger.sensorType == type && trigger.more == more) {
+                    indexes.add(i);
+                }
+            }
+            // Сортировка устойчивая: при равных уровнях сохраняется порядок объявления
+            indexes.sort(Comparator.comparingInt(i -> level.applyAsInt(triggers.get(i))));
+            var numbers = new int[indexes.size()];
+            for (int i = 0; i < numbers.length; i++) {
+                numbers[i] = indexes.get(i);
+            }
+            return numbers;
+        }
+
+        private int[] levels(int[] numbers, ToIntFunction<Trigger> level) {
+            var levels = new int[numbers.length];
+            for (int i = 0; i < numbers.length; i++) {
+                levels[i] = level.applyAsInt(triggers.get(numbers[i]));
+            }
+            return levels;
+        }
+
+        /**
+         * Проверка триггеров по изменению показаний с прошлой проверки
+         * <p>
+         * Триггер срабатывает на пересечении порога, а не на каждом показании: для "больше" кандидаты -
+         * пороги в [старое, новое), для "меньше" - в (новое, старое]. Сработавший триггер снова взводится,
+         * только когда показание выйдет за полосу гистерезиса по другую сторону порога. Если у триггера
+         * задана выдержка, условие должно продержаться столько по времени TICK, прежде чем триггер сработает;
+         * такие триггеры перепроверяются на каждом ответе, пока выдержка не кончится или условие не нарушится.
+         * Так же ждёт триггер, цель которого ещё не зарегистрирована или выпала по таймауту: он срабатывает
+         * на первом ответе, где цель снова есть, а не теряет команду до следующего пересечения порога.
+         * Все диапазоны находятся двоичным поиском, поэтому проверка стоит O(log n + изменившие состояние).
+         * При первой проверке взведены все триггеры, и срабатывают те, чьё условие истинно.
+         * </p>
+         *
+         * @param now время последнего TICK
+         * @return число сработавших триггеров; их номера в fired в порядке объявления
+         */
+        int checkTriggers(long now) {
+            int count = checkPending(now);
+            for (int type = 0; type < SENSOR_TYPES; type++) {
+                int value = reading(type);
+                if (value == -1) {
+                    continue;
+                }
+                var more = moreThresholds[type];
+                var less = lessThresholds[type];
+                if (!checked) {
+                    count = arm(moreTriggers[type], 0, lowerBound(more, value), now, count);
+                    count = arm(lessTriggers[type], upperBound(less, value), less.length, now, count);
+                } else {
+                    int old = checkedReadings[type];
+                    if (value > old) {
+                        var levels = lessRearmLevels[type];
+                        rearm(lessRearmTriggers[type], upperBound(levels, old), upperBound(levels, value));
+                        count = arm(moreTriggers[type], lowerBound(more, old), lowerBound(more, value), now, count);
+                    } else if (value < old) {
+                        var levels = moreRearmLevels[type];
+                        rearm(moreRearmTriggers[type], lowerBound(levels, value), lowerBound(levels, old));
+                        count = arm(lessTriggers[type], upperBound(less, value), upperBound(less, old), now, count);
+                    }
+                }
+                checkedReadings[type] = value;
+            }
+            checked = true;
+            Arrays.sort(fired, 0, count);
+            return count;
+        }
+
+        /**
+         * Есть ли триггеры, выдерживающие условие
+         *
+         * @return true, если датчик нужно перепроверить на следующем ответе
+         */
+        boolean dwelling() {
+            return pendingCount > 0;
+        }
+
+        // Триггеры, условие которых стало истинным: срабатывают сразу или начинают выдержку,
+        // если она задана или цели пока нет
+        private int arm(int[] numbers, int from, int to, long now, int count) {
+            for (int i = from; i < to; i++) {
+                int number = numbers[i];
+                if (triggerStates[number] != TRIGGER_ARMED) {
+                    continue;
+                }
+                var trigger = triggers.get(number);
+                if (trigger.dwell <= 0 && trigger.target.device != null) {
+                    triggerStates[number] = TRIGGER_FIRED;
+                    fired[count++] = number;
+                } else {
+                    triggerStates[number] = TRIGGER_PENDING;
+                    pendingSince[number] = now;
+                    pending[pendingCount++] = number;
+                }
+            }
+            return count;
+        }
+
+        // Сработавшие триггеры, показание которых вышло за полосу гистерезиса
+        private void rearm(int[] numbers, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (triggerStates[numbers[i]] == TRIGGER_FIRED) {
+                    triggerStates[numbers[i]] = TRIGGER_ARMED;
+                }
+            }
+        }
+
+        // Выдерживающие триггеры: срабатывают, если выдержка кончилась и цель есть в реестре,
+        // и снова взводятся, если условие нарушилось
+        private int checkPending(long now) {
+            int count = 0;
+            int kept = 0;
+            for (int i = 0; i < pendingCount; i++) {
+                int number = pending[i];
+                var trigger = triggers.get(number);
+                if (!trigger.holds(reading(trigger.sensorType))) {
+                    triggerStates[number] = TRIGGER_ARMED;
+                } else if (getInterval(pendingSince[number], now) >= trigger.dwell && trigger.target.device != null) {
+                    triggerStates[number] = TRIGGER_FIRED;
+                    fired[count++] = number;
+                } else {
+                    pending[kept++] = number;
+                }
+            }
+            pendingCount = kept;
+            return count;
+        }
+
+        // Первый индекс с порогом >= value
+        private static int lowerBound(int[] thresholds, int value) {
+            int low = 0;
+            int high = thresholds.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (thresholds[middle] < value) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        // Первый индекс с порогом > value
+        private static int upperBound(int[] thresholds, int value) {
+            return value == Integer.MAX_VALUE ? thresholds.length : lowerBound(thresholds, value + 1);
+        }
+
         @Override
         void setData(ByteBuffer buffer) {
-            updated = true;
             var size = buffer.get();
             if (size == 0) return;
             // Если сенсора нет, то значение равно -1
             if (temperature != -1) {
-                temperature = readULEB128(buffer).intValue();
+                temperature = (int) readULEB128(buffer);
             }
             if (humidity != -1) {
-                humidity = readULEB128(buffer).intValue();
+                humidity = (int) readULEB128(buffer);
             }
             if (illumination != -1) {
-                illumination = readULEB128(buffer).intValue();
+                illumination = (int) readULEB128(buffer);
             }
             if (airPollution != -1) {
-                airPollution = readULEB128(buffer).intValue();
+                airPollution = (int) readULEB128(buffer);
+            }
+            reported = true;
+            if (slot != -1) {
+                devices.readings.store(slot, this);
             }
         }
 
@@ -298,7 +751,19 @@ public class SmartHomeHub {
             // Тип сенсора
             byte sensorType;
             int value;
-            String name;
+            TargetSlot target;
+            // Ширина полосы гистерезиса: насколько показание должно уйти за порог, чтобы триггер снова взвёлся
+            int hysteresis;
+            // Сколько условие должно продержаться по времени TICK до срабатывания, мс
+            long dwell;
+
+            boolean holds(int reading) {
+                return more ? reading > value : reading < value;
+            }
+
+            int rearmLevel() {
+                return more ? value - hysteresis : (int) Math.min(Integer.MAX_VALUE, (long) value + hysteresis);
+            }
 
             @Override
             public String toString() {
@@ -307,19 +772,11 @@ public class SmartHomeHub {
                         ", more=" + more +
                         ", sensorType=" + sensorType +
                         ", value=" + value +
-                        ", name='" + name + '\'' +
+                        ", hysteresis=" + hysteresis +
+                        ", dwell=" + dwell +
+                        ", name='" + target.name + '\'' +
                         '}';
             }
-
-            boolean check() {
-                return switch (sensorType) {
-                    case 0 -> temperature > value;
-                    case 1 -> humidity > value;
-                    case 2 -> illumination > value;
-                    case 3 -> airPollution > value;
-                    default -> false;
-                };
-            }
         }
 
         @Override
@@ -336,669 +793,4016 @@ public class SmartHomeHub {
         }
     }
 
-    private enum DEVICE_TYPES_ENUM {
-        SmartHub(0x01), // SmartHub
-        EnvSensor(0x02), // EnvSensor
-        Switch(0x03), // Switch
-        Lamp(0x04), // Lamp
-        Socket(0x05), // Socket
-        Clock(0x06); // Clock
+    /**
+     * Реестр устройств
+     * <p>
+     * Держит два согласованных индекса: адрес -> устройство и имя -> устройство.
+     * В сети не может быть двух устройств с одним адресом или одним именем, поэтому
+     * регистрация вытесняет и прежнего владельца адреса, и прежнего владельца имени.
+     * </p>
+     * <p>
+     * Адреса 14-битные, поэтому индекс по адресу - плотный массив на 16К ссылок:
+     * поиск по адресу не упаковывает short и ничего не выделяет. Устройства с адресом
+     * вне диапазона протокола не регистрируются.
+     * </p>
+     */
+    static class DeviceRegistry {
+        static final int ADDRESSES = 0x4000;
 
-        private final int value;
+        private final Device[] byAddress = new Device[ADDRESSES];
+        private int size;
+        private final Map<String, Device> byName = new HashMap<>();
+        // Имя цели -> ссылки зарегистрированных устройств на эту цель в произвольном порядке
+        private final Map<String, List<TargetSlot>> slotsByName = new HashMap<>();
+        // Колоночное хранилище показаний датчиков; null, если выключено
+        SensorReadings readings;
+        // История показаний датчиков; null, если выключена
+        SensorHistory history;
 
-        DEVICE_TYPES_ENUM(int value) {
-            this.value = value;
+        /**
+         * Получить устройство по адресу
+         *
+         * @param address адрес устройства
+         * @return устройство или null
+         */
+        Device get(short address) {
+            return isValid(address) ? byAddress[address] : null;
         }
 
-        public byte getValue() {
-            return (byte) value;
+        /**
+         * Лежит ли адрес в 14-битном диапазоне протокола
+         *
+         * @param address адрес
+         * @return true, если адрес допустим
+         */
+        static boolean isValid(short address) {
+            return address >= 0 && address < ADDRESSES;
         }
-    }
 
-    private enum COMMANDS_ENUM {
-        WHOISHERE(0x01), // WHOISHERE
-        IAMHERE(0x02), // IAMHERE
-        GETSTATUS(0x03), // GETSTATUS
-        STATUS(0x04), // STATUS
-        SETSTATUS(0x05), // SETSTATUS
-        TICK(0x06); // TICK
+        /**
+         * Получить устройство по имени
+         *
+         * @param name имя устройства
+         * @return устройство или null
+         */
+        Device getByName(String name) {
+            return byName.get(name);
+        }
 
-        private final int value;
+        /**
+         * Зарегистрировать устройство
+         *
+         * @param device устройство
+         */
+        void put(Device device) {
+            if (!isValid(device.address)) {
+                return;
+            }
+            var previous = byAddress[device.address];
+            byAddress[device.address] = device;
+            if (previous == null) {
+                size++;
+            } else if (previous != device) {
+                // Адрес занят другим устройством - его имя больше никуда не ведёт
+                byName.remove(previous.name, previous);
+                unlink(previous);
+            }
+            var sameName = byName.put(device.name, device);
+            if (sameName != null && sameName != device && sameName != previous) {
+                // Устройство с тем же именем переехало на новый адрес
+                clearAddress(sameName);
+                unlink(sameName);
+            }
+            link(device);
+        }
 
-        COMMANDS_ENUM(int value) {
-            this.value = value;
+        private void clearAddress(Device device) {
+            if (byAddress[device.address] == device) {
+                byAddress[device.address] = null;
+                size--;
+            }
         }
 
-        public byte getValue() {
-            return (byte) value;
+        /**
+         * Удалить устройство по адресу
+         *
+         * @param address адрес устройства
+         * @return удалённое устройство или null
+         */
+        Device remove(short address) {
+            var device = get(address);
+            if (device != null) {
+                clearAddress(device);
+                byName.remove(device.name, device);
+                unlink(device);
+            }
+            return device;
         }
-    }
 
-    /**
-     * Конструктор
-     *
-     * @param url     URL сервера
-     * @param address адрес хаба
-     */
-    private SmartHomeHub(String url, String address) {
-        try {
-            serverURL = new URL(url);
-        } catch (Exception ignored) {
-            serverURL = null;
+        /**
+         * Удалить устройство по имени
+         *
+         * @param name имя устройства
+         * @return удалённое устройство или null
+         */
+        Device removeByName(String name) {
+            var device = byName.remove(name);
+            if (device != null) {
+                clearAddress(device);
+                unlink(device);
+            }
+            return device;
         }
-        hubAddress = Short.parseShort(address, 16);
-    }
 
-    /**
-     * Получить устройство по имени
-     *
-     * @param name имя устройства
-     * @return устройство
-     */
-    private Device getDeviceByName(String name) {
-        return devices.values().stream().filter(device -> device.name.equals(name)).findFirst().orElse(null);
-    }
+        /**
+         * Связать только что зарегистрированное устройство с графом управления
+         *
+         * @param device устройство
+         */
+        private void link(Device device) {
+            // Ссылки других устройств на это имя теперь ведут сюда
+            var waiting = slotsByName.get(device.name);
+            if (waiting != null) {
+                for (var slot : waiting) {
+                    slot.device = device;
+                }
+            }
+            // Собственные цели устройства разрешаются по текущему индексу имён
+            for (var slot : device.targets) {
+                var slots = slotsByName.computeIfAbsent(slot.name, k -> new ArrayList<>());
+                slot.index = slots.size();
+                slots.add(slot);
+                slot.device = byName.get(slot.name);
+            }
+            if (readings != null && device instanceof EnvSensor sensor && sensor.slot == -1) {
+                sensor.slot = readings.allocate();
+                if (sensor.reported) {
+                    readings.store(sensor.slot, sensor);
+                }
+            }
+        }
 
-    /**
-     * Удалить устройство по имени
-     *
-     * @param name имя устройства
-     */
-    private void deleteDeviceByName(String name) {
-        for (var device : devices.values()) {
-            if (device.name.equals(name)) {
-                devices.remove(device.address);
-                break;
+        /**
+         * Убрать удалённое устройство из графа управления
+         *
+         * @param device устройство
+         */
+        private void unlink(Device device) {
+            var waiting = slotsByName.get(device.name);
+            if (waiting != null) {
+                for (var slot : waiting) {
+                    if (slot.device == device) {
+                        slot.device = null;
+                    }
+                }
+            }
+            for (var slot : device.targets) {
+                // Порядок ссылок не важен: на место удалённой встаёт последняя
+                var slots = slotsByName.get(slot.name);
+                var last = slots.remove(slots.size() - 1);
+                if (last != slot) {
+                    slots.set(slot.index, last);
+                    last.index = slot.index;
+                }
+                slot.index = -1;
+                if (slots.isEmpty()) {
+                    slotsByName.remove(slot.name);
+                }
+                slot.device = null;
+            }
+            if (device instanceof EnvSensor sensor && sensor.slot != -1) {
+                readings.release(sensor.slot);
+                sensor.slot = -1;
+            }
+            if (device instanceof EnvSensor sensor && history != null) {
+                for (int type = 0; type < SENSOR_TYPES; type++) {
+                    if (sensor.series[type] != -1) {
+                        history.release(sensor.series[type]);
+                        sensor.series[type] = -1;
+                    }
+                }
             }
         }
-    }
 
-    /**
-     * Удалить устройство по адресу
-     *
-     * @param address адрес устройства
-     */
-    private void deleteDeviceByAddress(short address) {
-        devices.remove(address);
-    }
+        /**
+         * Все устройства по возрастанию адреса
+         *
+         * @return устройства; обход просматривает весь индекс, поэтому он не для горячего пути
+         */
+        Collection<Device> values() {
+            return new AbstractCollection<>() {
+                @Override
+                public Iterator<Device> iterator() {
+                    return new Iterator<>() {
+                        private int next = advance(0);
 
-    /**
-     * Получить интервал между двумя числами-временными метками
-     *
-     * @param first  первое число
-     * @param second второе число
-     * @return интервал
-     */
-    private int getInterval(BigInteger first, BigInteger second) {
-        return second.subtract(first).intValue();
+                        private int advance(int from) {
+                            while (from < ADDRESSES && byAddress[from] == null) {
+                                from++;
+                            }
+                            return from;
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < ADDRESSES;
+                        }
+
+                        @Override
+                        public Device next() {
+                            if (next >= ADDRESSES) {
+                                throw new NoSuchElementException();
+                            }
+                            var device = byAddress[next];
+                            next = advance(next + 1);
+                            return device;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+
+        int size() {
+            return size;
+        }
     }
 
     /**
-     * Отправка следующего запроса (пакетов)
+     * Колоночное хранилище показаний датчиков
+     * <p>
+     * Показания всех датчиков лежат в плотных массивах, по одному на тип датчика; индекс - слот датчика.
+     * Вместо значения -1 у каждого слота есть маска: бит типа взведён, если у датчика есть датчик
+     * этого типа и он уже прислал показание. Где бита нет, в массиве лежит Integer.MIN_VALUE, поэтому
+     * максимум и подсчёт "больше порога" идут по одному массиву без ветвлений по маске.
+     * </p>
+     * <p>
+     * Слоты выдаёт реестр при регистрации датчика и освобождает при удалении. Пишет в хранилище только
+     * обработка ответа, в шардированном режиме - каждый шард в слоты своих датчиков. Запросы с другого
+     * потока, например экспорт метрик, идут без блокировок и могут отставать на один ответ.
+     * </p>
      */
-    private void sentNextRequest() {
-        try {
-            HttpURLConnection connection = (HttpURLConnection) serverURL.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setDoOutput(true);
-            connection.setDoInput(true);
+    static class SensorReadings {
+        private static final int MISSING = Integer.MIN_VALUE;
+
+        private int[][] columns = new int[SENSOR_TYPES][64];
+        private byte[] presence = new byte[64];
+        // Освобождённые слоты, занимаются в первую очередь, чтобы массивы оставались плотными
+        private int[] free = new int[16];
+        private int freeCount;
+        // Граница занятых слотов
+        private int size;
+
+        SensorReadings() {
+            for (var column : columns) {
+                Arrays.fill(column, MISSING);
+            }
+        }
 
-            // Забираем из очереди все пакеты, которые нужно отправить
-            var payloads = new ArrayList<Payload>();
-            while (sentQueue.size() > 0) {
-                var payload = sentQueue.poll();
-                if (payload.cmd != COMMANDS_ENUM.IAMHERE.getValue() && payload.cmd != COMMANDS_ENUM.WHOISHERE.getValue()) {
-                    waitingResponses.put(payload.dst, currentTimestamp);
+        /**
+         * Занять слот под датчик
+         *
+         * @return номер слота
+         */
+        int allocate() {
+            if (freeCount > 0) {
+                return free[--freeCount];
+            }
+            if (size == presence.length) {
+                int capacity = size * 2;
+                var grown = new int[SENSOR_TYPES][];
+                for (int type = 0; type < SENSOR_TYPES; type++) {
+                    grown[type] = Arrays.copyOf(columns[type], capacity);
+                    Arrays.fill(grown[type], size, capacity, MISSING);
                 }
-                payloads.add(payload);
+                columns = grown;
+                presence = Arrays.copyOf(presence, capacity);
             }
+            return size++;
+        }
 
-            connection.getOutputStream().write(encodePacketsToTransfer(payloads));
-            connection.getOutputStream().flush();
+        /**
+         * Освободить слот удалённого датчика
+         *
+         * @param slot номер слота
+         */
+        void release(int slot) {
+            presence[slot] = 0;
+            for (var column : columns) {
+                column[slot] = MISSING;
+            }
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, freeCount * 2);
+            }
+            free[freeCount++] = slot;
+        }
 
-            if (connection.getResponseCode() == 204) {
-                System.exit(0);
+        /**
+         * Записать текущие показания датчика в его слот
+         *
+         * @param slot   номер слота
+         * @param sensor датчик
+         */
+        void store(int slot, EnvSensor sensor) {
+            int mask = 0;
+            for (int type = 0; type < SENSOR_TYPES; type++) {
+                int value = sensor.reading(type);
+                if (value != -1) {
+                    columns[type][slot] = value;
+                    mask |= 1 << type;
+                }
             }
+            presence[slot] = (byte) mask;
+        }
 
-            if (connection.getResponseCode() != 200) {
-                System.exit(99);
+        /**
+         * Число датчиков с показанием данного типа
+         *
+         * @param type тип датчика
+         * @return число датчиков
+         */
+        int count(int type) {
+            var presence = this.presence;
+            int bit = 1 << type;
+            int count = 0;
+            for (int i = 0, size = Math.min(this.size, presence.length); i < size; i++) {
+                count += (presence[i] & bit) >>> type;
             }
+            return count;
+        }
 
-            var response = connection.getInputStream().readAllBytes();
-            processResponse(response);
-        } catch (Exception e) {
-            System.exit(99);
+        /**
+         * Наибольшее показание данного типа по всем датчикам
+         *
+         * @param type тип датчика
+         * @return показание или -1, если показаний нет
+         */
+        int max(int type) {
+            var column = columns[type];
+            int max = MISSING;
+            for (int i = 0, size = Math.min(this.size, column.length); i < size; i++) {
+                max = Math.max(max, column[i]);
+            }
+            return max == MISSING ? -1 : max;
         }
-    }
 
-    /**
-     * Добавить запрос в очередь
-     *
-     * @param payload тело запроса
-     */
-    private void addRequestToQueue(Payload payload) {
-        sentQueue.add(payload);
-        serialCounter = serialCounter.add(BigInteger.ONE);
-    }
+        /**
+         * Наименьшее показание данного типа по всем датчикам
+         *
+         * @param type тип датчика
+         * @return показание или -1, если показаний нет
+         */
+        int min(int type) {
+            var column = columns[type];
+            int min = Integer.MAX_VALUE;
+            for (int i = 0, size = Math.min(this.size, column.length); i < size; i++) {
+                // Отсутствующее показание как беззнаковое больше любого настоящего
+                min = Integer.compareUnsigned(column[i], min) < 0 ? column[i] : min;
+            }
+            return min == Integer.MAX_VALUE && count(type) == 0 ? -1 : min;
+        }
 
-    /**
-     * Подготовка пакета WHOISHERE
-     */
-    private void sentWhoIsHere() {
-        var commandBody = new Payload.CmdBodyDevice();
-        commandBody.dev_name = "SmartHub";
-        commandBody.dev_props = new byte[0];
-        var payload = Payload.create()
-                .setSrc(hubAddress)
-                .setDst(BROADCASTING_ADDRESS)
-                .setSerial(serialCounter)
-                .setDevType(DEVICE_TYPES_ENUM.SmartHub.getValue())
-                .setCmd(COMMANDS_ENUM.WHOISHERE.getValue())
-                .setCmdBody(commandBody);
+        /**
+         * Сумма показаний данного типа по всем датчикам
+         *
+         * @param type тип датчика
+         * @return сумма
+         */
+        long sum(int type) {
+            var column = columns[type];
+            long sum = 0;
+            for (int i = 0, size = Math.min(this.size, column.length); i < size; i++) {
+                sum += Math.max(column[i], 0);
+            }
+            return sum;
+        }
 
-        addRequestToQueue(payload);
+        /**
+         * Число датчиков, показание которых больше порога, как у триггера "больше"
+         *
+         * @param type      тип датчика
+         * @param threshold порог
+         * @return число датчиков
+         */
+        int countMore(int type, int threshold) {
+            var column = columns[type];
+            int count = 0;
+            for (int i = 0, size = Math.min(this.size, column.length); i < size; i++) {
+                count += column[i] > threshold ? 1 : 0;
+            }
+            return count;
+        }
+
+        /**
+         * Число датчиков, показание которых меньше порога, как у триггера "меньше"
+         *
+         * @param type      тип датчика
+         * @param threshold порог
+         * @return число датчиков
+         */
+        int countLess(int type, int threshold) {
+            var column = columns[type];
+            int count = 0;
+            for (int i = 0, size = Math.min(this.size, column.length); i < size; i++) {
+                // Отсутствующее показание как беззнаковое не меньше никакого порога
+                count += Integer.compareUnsigned(column[i], threshold) < 0 ? 1 : 0;
+            }
+            return count;
+        }
     }
 
     /**
-     * Подготовка пакета GETSTATUS
-     *
-     * @param device устройство
+     * История показаний датчиков в кольцевых буферах с прореживанием
+     * <p>
+     * Ряд - показания одного типа одного датчика. У каждого ряда три кольца: сырые точки с временем TICK,
+     * поминутные и почасовые корзины с минимумом, максимумом, суммой и числом точек. Каждое показание
+     * сразу попадает во все три кольца, поэтому старшие уровни считаются по всем точкам, а не по тому,
+     * что ещё осталось в сыром кольце. Когда кольцо заполнено, новая точка или корзина затирает самую старую.
+     * </p>
+     * <p>
+     * Все массивы выделяются один раз под бюджет памяти, заданный при запуске, и больше не растут:
+     * рядов столько, сколько помещается в бюджет. Ряд выделяется на первом STATUS датчика с показанием
+     * этого типа, а реестр забирает ряды при удалении датчика; датчик, которому ряда не хватило, работает
+     * без истории, пока ряд не освободится. Пишет в ряд только обработка ответа на главном потоке,
+     * после применения всех STATUS.
+     * </p>
      */
-    private void sentGetStatus(Device device) {
-        var payload = Payload.create()
-                .setSrc(hubAddress)
-                .setDst(device.address)
-                .setSerial(serialCounter)
-                .setDevType(device.getType().getValue())
-                .setCmd(COMMANDS_ENUM.GETSTATUS.getValue());
-        addRequestToQueue(payload);
-    }
+    static class SensorHistory {
+        // Длина колец: сырые точки, минуты, часы
+        static final int RAW_POINTS = 256;
+        static final int MINUTE_BUCKETS = 120;
+        static final int HOUR_BUCKETS = 48;
+        // Размер одного ряда в байтах вместе со служебными счётчиками колец
+        static final int SERIES_BYTES = RAW_POINTS * (Long.BYTES + Integer.BYTES) + 2 * Integer.BYTES
+                + (MINUTE_BUCKETS + HOUR_BUCKETS) * Tier.BUCKET_BYTES + 2 * Tier.SERIES_OVERHEAD + Integer.BYTES;
 
-    /**
+        private final int capacity;
+        // Сырые точки: RAW_POINTS подряд на ряд
+        private final long[] rawTimes;
+        private final int[] rawValues;
+        // Куда писать следующую сырую точку и сколько точек в кольце
+        private final int[] rawNext;
+        private final int[] rawFilled;
+        final Tier minutes;
+        final Tier hours;
+        // Свободные ряды
+        private final int[] free;
+        private int freeCount;
+
+        /**
+         * @param budgetBytes бюджет памяти на всю историю
+         */
+        SensorHistory(long budgetBytes) {
+            capacity = (int) Math.min(budgetBytes / SERIES_BYTES, Integer.MAX_VALUE / RAW_POINTS);
+            rawTimes = new long[capacity * RAW_POINTS];
+            rawValues = new int[capacity * RAW_POINTS];
+            rawNext = new int[capacity];
+            rawFilled = new int[capacity];
+            minutes = new Tier(60_000, MINUTE_BUCKETS, capacity);
+            hours = new Tier(3_600_000, HOUR_BUCKETS, capacity);
+            free = new int[capacity];
+            // Ряды выдаются с начала, чтобы занятая часть массивов была плотной
+            for (int i = 0; i < capacity; i++) {
+                free[i] = capacity - 1 - i;
+            }
+            freeCount = capacity;
+        }
+
+        /**
+         * Занять ряд
+         *
+         * @return номер ряда или -1, если бюджет исчерпан
+         */
+        int allocate() {
+            return freeCount > 0 ? free[--freeCount] : -1;
+        }
+
+        /**
+         * Освободить ряд удалённого датчика
+         *
+         * @param series номер ряда
+         */
+        void release(int series) {
+            rawNext[series] = 0;
+            rawFilled[series] = 0;
+            minutes.clear(series);
+            hours.clear(series);
+            free[freeCount++] = series;
+        }
+
+        int capacity() {
+            return capacity;
+        }
+
+        int used() {
+            return capacity - freeCount;
+        }
+
+        /**
+         * Добавить показание
+         *
+         * @param series номер ряда
+         * @param time   время TICK, мс
+         * @param value  показание
+         */
+        void append(int series, long time, int value) {
+            int i = series * RAW_POINTS + rawNext[series];
+            rawTimes[i] = time;
+            rawValues[i] = value;
+            rawNext[series] = (rawNext[series] + 1) % RAW_POINTS;
+            if (rawFilled[series] < RAW_POINTS) {
+                rawFilled[series]++;
+            }
+            minutes.add(series, time, value);
+            hours.add(series, time, value);
+        }
+
+        /**
+         * Сырые точки ряда от старых к новым
+         *
+         * @param series номер ряда
+         * @param times  время точек, не короче RAW_POINTS
+         * @param values показания, не короче RAW_POINTS
+         * @return число точек
+         */
+        int raw(int series, long[] times, int[] values) {
+            int filled = rawFilled[series];
+            int first = (rawNext[series] - filled + RAW_POINTS) % RAW_POINTS;
+            for (int k = 0; k < filled; k++) {
+                int i = series * RAW_POINTS + (first + k) % RAW_POINTS;
+                times[k] = rawTimes[i];
+                values[k] = rawValues[i];
+            }
+            return filled;
+        }
+
+        /**
+         * Кольцо корзин одной ширины: начало корзины, минимум, максимум, сумма и число точек
+         */
+        static final class Tier {
+            static final int BUCKET_BYTES = 2 * Long.BYTES + 3 * Integer.BYTES;
+            static final int SERIES_OVERHEAD = 2 * Integer.BYTES;
+
+            final long width;
+            final int buckets;
+            private final long[] starts;
+            private final int[] mins;
+            private final int[] maxs;
+            private final long[] sums;
+            private final int[] counts;
+            private final int[] next;
+            private final int[] filled;
+
+            Tier(long width, int buckets, int capacity) {
+                this.width = width;
+                this.buckets = buckets;
+                starts = new long[capacity * buckets];
+                mins = new int[capacity * buckets];
+                maxs = new int[capacity * buckets];
+                sums = new long[capacity * buckets];
+                counts = new int[capacity * buckets];
+                next = new int[capacity];
+                filled = new int[capacity];
+            }
+
+            void add(int series, long time, int value) {
+                long start = time - Math.floorMod(time, width);
+                int base = series * buckets;
+                int last = base + (next[series] + buckets - 1) % buckets;
+                if (filled[series] > 0 && starts[last] == start) {
+                    mins[last] = Math.min(mins[last], value);
+                    maxs[last] = Math.max(maxs[last], value);
+                    sums[last] += value;
+                    counts[last]++;
+                    return;
+                }
+                int i = base + next[series];
+                starts[i] = start;
+                mins[i] = value;
+                maxs[i] = value;
+                sums[i] = value;
+                counts[i] = 1;
+                next[series] = (next[series] + 1) % buckets;
+                if (filled[series] < buckets) {
+                    filled[series]++;
+                }
+            }
+
+            void clear(int series) {
+                next[series] = 0;
+                filled[series] = 0;
+            }
+
+            /**
+             * Корзины ряда от старых к новым
+             *
+             * @param series номер ряда
+             * @param starts начало корзины, не короче buckets
+             * @param mins   минимум
+             * @param maxs   максимум
+             * @param avgs   среднее
+             * @return число корзин
+             */
+            int read(int series, long[] starts, int[] mins, int[] maxs, double[] avgs) {
+                int filled = this.filled[series];
+                int first = (next[series] - filled + buckets) % buckets;
+                for (int k = 0; k < filled; k++) {
+                    int i = series * buckets + (first + k) % buckets;
+                    starts[k] = this.starts[i];
+                    mins[k] = this.mins[i];
+                    maxs[k] = this.maxs[i];
+                    avgs[k] = (double) sums[i] / counts[i];
+                }
+                return filled;
+            }
+        }
+    }
+
+    /**
+     * Запросы GETSTATUS/SETSTATUS, ожидающие ответа
+     * <p>
+     * Время отправки берётся из последнего TICK и не убывает, поэтому очередь в порядке отправки
+     * одновременно упорядочена по сроку ожидания: просроченные запросы всегда лежат в её начале.
+     * На один адрес может одновременно ожидаться несколько ответов, они снимаются в порядке отправки.
+     * Отвеченные запросы помечаются и выбрасываются, когда доходят до начала очереди.
+     * </p>
+     * <p>
+     * Очередь - кольцо из примитивных массивов, запросы к одному адресу связаны в цепочку через него же,
+     * а начало и конец цепочки лежат в массивах по адресу. Регистрация, снятие и просрочка ничего не выделяют,
+     * кроме редкого роста кольца.
+     * </p>
+     */
+    static class PendingResponses {
+        static final short NONE = -1;
+        static final long NOT_WAITING = Long.MIN_VALUE;
+
+        // Кольцо запросов в порядке отправки: адрес, время отправки, снят ли ответ и следующий запрос
+        // к тому же адресу. Запрос идентифицируется порядковым номером, слот в кольце - номер по маске,
+        // поэтому при росте кольца номера и цепочки по адресам остаются верными
+        private short[] addresses = new short[64];
+        private long[] sentAt = new long[64];
+        private boolean[] done = new boolean[64];
+        private long[] nextSame = new long[64];
+        private int mask = 63;
+        private long head;
+        private long tail;
+        // Первый и последний ожидающий запрос к адресу, -1 - запросов нет
+        private final long[] first = new long[DeviceRegistry.ADDRESSES];
+        private final long[] last = new long[DeviceRegistry.ADDRESSES];
+
+        PendingResponses() {
+            Arrays.fill(first, -1);
+            Arrays.fill(last, -1);
+        }
+
+        /**
+         * Зарегистрировать отправленный запрос
+         *
+         * @param address адрес устройства
+         * @param sentAt  время отправки
+         */
+        void add(short address, long sentAt) {
+            if (!DeviceRegistry.isValid(address)) {
+                return;
+            }
+            if (tail - head == addresses.length) {
+                grow();
+            }
+            int i = (int) tail & mask;
+            addresses[i] = address;
+            this.sentAt[i] = sentAt;
+            done[i] = false;
+            nextSame[i] = -1;
+            if (first[address] == -1) {
+                first[address] = tail;
+            } else {
+                nextSame[(int) last[address] & mask] = tail;
+            }
+            last[address] = tail++;
+        }
+
+        private void grow() {
+            int capacity = addresses.length * 2;
+            var grownAddresses = new short[capacity];
+            var grownSentAt = new long[capacity];
+            var grownDone = new boolean[capacity];
+            var grownNextSame = new long[capacity];
+            for (long seq = head; seq < tail; seq++) {
+                int from = (int) seq & mask;
+                int to = (int) seq & (capacity - 1);
+                grownAddresses[to] = addresses[from];
+                grownSentAt[to] = sentAt[from];
+                grownDone[to] = done[from];
+                grownNextSame[to] = nextSame[from];
+            }
+            addresses = grownAddresses;
+            sentAt = grownSentAt;
+            done = grownDone;
+            nextSame = grownNextSame;
+            mask = capacity - 1;
+        }
+
+        /**
+         * Снять самый старый ожидающий запрос к устройству
+         *
+         * @param address адрес устройства
+         * @return время отправки запроса или NOT_WAITING, если ответа не ждали
+         */
+        long poll(short address) {
+            if (!DeviceRegistry.isValid(address) || first[address] == -1) {
+                return NOT_WAITING;
+            }
+            int i = (int) first[address] & mask;
+            first[address] = nextSame[i];
+            if (first[address] == -1) {
+                last[address] = -1;
+            }
+            done[i] = true;
+            return sentAt[i];
+        }
+
+        /**
+         * Снять все ожидающие запросы к устройству
+         *
+         * @param address адрес устройства
+         */
+        void clear(short address) {
+            if (!DeviceRegistry.isValid(address)) {
+                return;
+            }
+            for (long seq = first[address]; seq != -1; ) {
+                int i = (int) seq & mask;
+                done[i] = true;
+                seq = nextSame[i];
+            }
+            first[address] = -1;
+            last[address] = -1;
+        }
+
+        /**
+         * Достать следующий просроченный запрос
+         * <p>
+         * Просматриваются только запросы из начала очереди, отправленные раньше deadline
+         * </p>
+         *
+         * @param deadline запросы, отправленные раньше этого времени, просрочены
+         * @return адрес устройства, не ответившего вовремя, или NONE
+         */
+        short pollExpired(long deadline) {
+            while (head < tail && sentAt[(int) head & mask] < deadline) {
+                int i = (int) head++ & mask;
+                if (!done[i]) {
+                    clear(addresses[i]);
+                    return addresses[i];
+                }
+            }
+            return NONE;
+        }
+
+        int size() {
+            return (int) (tail - head);
+        }
+    }
+
+    private enum DEVICE_TYPES_ENUM {
+        SmartHub(0x01), // SmartHub
+        EnvSensor(0x02), // EnvSensor
+        Switch(0x03), // Switch
+        Lamp(0x04), // Lamp
+        Socket(0x05), // Socket
+        Clock(0x06); // Clock
+
+        private final int value;
+
+        DEVICE_TYPES_ENUM(int value) {
+            this.value = value;
+        }
+
+        public byte getValue() {
+            return (byte) value;
+        }
+    }
+
+    private enum COMMANDS_ENUM {
+        WHOISHERE(0x01), // WHOISHERE
+        IAMHERE(0x02), // IAMHERE
+        GETSTATUS(0x03), // GETSTATUS
+        STATUS(0x04), // STATUS
+        SETSTATUS(0x05), // SETSTATUS
+        TICK(0x06); // TICK
+
+        private final int value;
+
+        COMMANDS_ENUM(int value) {
+            this.value = value;
+        }
+
+        public byte getValue() {
+            return (byte) value;
+        }
+    }
+
+    /**
+     * Конструктор
+     *
+     * @param transport транспорт до сервера
+     * @param address   адрес хаба
+     * @param options   параметры запуска
+     */
+    SmartHomeHub(HubTransport transport, String address, Options options) {
+        this.transport = transport;
+        this.options = options;
+        hubAddress = Short.parseShort(address, 16);
+        shards = options.shards > 1 ? new Shards(options.shards) : null;
+        if (options.sensorStore) {
+            devices.readings = metrics.readings = new SensorReadings();
+        }
+        if (options.historyMb > 0) {
+            devices.history = metrics.history = new SensorHistory(options.historyMb * 1024L * 1024L);
+        }
+    }
+
+    /**
+     * Удалить устройство по адресу
+     *
+     * @param address адрес устройства
+     */
+    private void deleteDeviceByAddress(short address) {
+        if (devices.remove(address) != null) {
+            metrics.devicesRemoved.increment();
+        }
+    }
+
+    /**
+     * Получить интервал между двумя числами-временными метками
+     *
+     * @param first  первое число
+     * @param second второе число
+     * @return интервал
+     */
+    private long getInterval(long first, long second) {
+        return second - first;
+    }
+
+    /**
+     * Отправка следующего запроса (пакетов)
+     */
+    private void sentNextRequest() {
+        try {
+            // Логика: запрос из накопленных пакетов
+            var request = prepareRequest(requests[0], false);
+
+            // Ввод-вывод целиком в транспорте; тело ответа разбирается по мере прихода
+            packetDecoder.reset();
+            long started = System.nanoTime();
+            int status = transport.exchange(request, packetDecoder);
+            metrics.roundTrip.record(System.nanoTime() - started);
+
+            // Логика: обновления, триггеры и ожидания ответов по итогам всего ответа
+            if (checkStatus(status)) {
+                finishResponse();
+            }
+        } catch (Exception e) {
+            stop(99);
+        }
+    }
+
+    /**
+     * Конвейерный цикл опроса
+     * <p>
+     * Как только пришёл ответ N, запрос N+1 с уже накопленными командами уходит на отдельном потоке,
+     * а ответ N разбирается параллельно с этим обменом. Команды, порождённые ответом N, уйдут в запросе N+2.
+     * Все данные хаба меняются только в этом потоке: поток ввода-вывода видит лишь готовый буфер запроса
+     * и свой буфер ответа. Серийные номера выдаются при постановке в очередь, поэтому идут по порядку.
+     * Время отправки запроса для окна в 300мс - последний TICK, известный серверу на момент приёма запроса,
+     * то есть TICK из ответа, разбираемого параллельно; поэтому ожидания ответов регистрируются после его разбора.
+     * </p>
+     */
+    private void runPipelined() {
+        var io = Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "hub-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            int current = 0;
+            Future<Integer> inFlight = submitExchange(io, prepareRequest(requests[current], false), responses[current]);
+            while (true) {
+                int status = inFlight.get();
+                metrics.roundTrip.record(responses[current].roundTripNanos);
+                if (!checkStatus(status)) {
+                    return;
+                }
+
+                int next = current ^ 1;
+                inFlight = submitExchange(io, prepareRequest(requests[next], true), responses[next]);
+
+                processResponse(responses[current].view());
+                registerDeferredPending();
+                current = next;
+            }
+        } catch (Exception e) {
+            stop(99);
+        } finally {
+            io.shutdownNow();
+        }
+    }
+
+    /**
+     * Запуск обмена на потоке ввода-вывода
+     *
+     * @param io       поток ввода-вывода
+     * @param request  тело запроса
+     * @param response буфер для ответа
+     * @return код ответа
+     */
+    private Future<Integer> submitExchange(ExecutorService io, ByteBuffer request, ResponseBuffer response) {
+        return io.submit(() -> exchange(request, response));
+    }
+
+    /**
+     * Обмен с сервером
+     *
+     * @param request  тело запроса
+     * @param response буфер для ответа
+     * @return код ответа
+     * @throws IOException при ошибке соединения
+     */
+    private int exchange(ByteBuffer request, ResponseBuffer response) throws IOException {
+        response.clear();
+        long started = System.nanoTime();
+        int status = transport.exchange(request, response);
+        response.roundTripNanos = System.nanoTime() - started;
+        return status;
+    }
+
+    /**
+     * Проверка кода ответа: 204 - штатное завершение, всё кроме 200 - ошибка
+     *
+     * @param status код ответа
+     * @return нужно ли обрабатывать ответ
+     */
+    private boolean checkStatus(int status) {
+        if (status == 204) {
+            stop(0);
+            return false;
+        }
+
+        if (status != 200) {
+            stop(99);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Подготовка запроса из очереди пакетов
+     *
+     * @param out          буфер для кодирования запроса
+     * @param deferPending отложить регистрацию ожиданий ответа до разбора текущего ответа
+     * @return тело запроса
+     */
+    private ByteBuffer prepareRequest(EncodeBuffer out, boolean deferPending) {
+        // Отправляем все пакеты из очереди
+        for (var payload : sentQueue) {
+            if (payload.cmd != COMMANDS_ENUM.IAMHERE.getValue() && payload.cmd != COMMANDS_ENUM.WHOISHERE.getValue()) {
+                if (deferPending) {
+                    if (deferredPendingCount == deferredPending.length) {
+                        deferredPending = Arrays.copyOf(deferredPending, deferredPendingCount * 2);
+                    }
+                    deferredPending[deferredPendingCount++] = payload.dst;
+                } else {
+                    waitingResponses.add(payload.dst, currentTimestamp);
+                }
+            }
+        }
+        var request = encodePacketsToTransfer(sentQueue, out);
+        sentQueue.clear();
+        if (journal != null) {
+            journal.outbound(out.packets.array(), out.packets.position(), deferPending, currentTimestamp);
+        }
+        return request;
+    }
+
+    /**
+     * Регистрация отложенных ожиданий ответа с временем последнего TICK
+     */
+    private void registerDeferredPending() {
+        for (int i = 0; i < deferredPendingCount; i++) {
+            waitingResponses.add(deferredPending[i], currentTimestamp);
+        }
+        deferredPendingCount = 0;
+    }
+
+    /**
+     * Завершение работы хаба: цикл опроса остановится после текущего обмена
+     *
+     * @param code код возврата
+     */
+    private void stop(int code) {
+        if (exitCode == RUNNING) {
+            exitCode = code;
+        }
+    }
+
+    /**
+     * Добавить запрос в очередь
+     *
+     * @param payload тело запроса
+     */
+    private void addRequestToQueue(Payload payload) {
+        sentQueue.add(payload);
+        serialCounter++;
+    }
+
+    /**
+     * Подготовка пакета WHOISHERE
+     */
+    private void sentWhoIsHere() {
+        var commandBody = new Payload.CmdBodyDevice();
+        commandBody.dev_name = "SmartHub";
+        var payload = Payload.create()
+                .setSrc(hubAddress)
+                .setDst(BROADCASTING_ADDRESS)
+                .setSerial(serialCounter)
+                .setDevType(DEVICE_TYPES_ENUM.SmartHub.getValue())
+                .setCmd(COMMANDS_ENUM.WHOISHERE.getValue())
+                .setCmdBody(commandBody);
+
+        addRequestToQueue(payload);
+    }
+
+    /**
+     * Подготовка пакета GETSTATUS
+     *
+     * @param device устройство
+     */
+    private void sentGetStatus(Device device) {
+        var payload = Payload.create()
+                .setSrc(hubAddress)
+                .setDst(device.address)
+                .setSerial(serialCounter)
+                .setDevType(device.getType().getValue())
+                .setCmd(COMMANDS_ENUM.GETSTATUS.getValue());
+        addRequestToQueue(payload);
+        device.requestsInFlight++;
+    }
+
+    /**
      * Подготовка пакета SETSTATUS
      *
-     * @param device устройство
-     * @param status статус
+     * @param device устройство
+     * @param status статус
+     */
+    private void sentSetStatus(Device device, Payload.CmdBody status) {
+        var payload = Payload.create()
+                .setSrc(hubAddress)
+                .setDst(device.address)
+                .setSerial(serialCounter)
+                .setDevType(device.getType().getValue())
+                .setCmd(COMMANDS_ENUM.SETSTATUS.getValue())
+                .setCmdBody(status);
+        addRequestToQueue(payload);
+        metrics.setStatusSent.increment();
+    }
+
+    /**
+     * Управление устройством
+     * <p>
+     * Команда не уходит сразу: за цикл у цели остаётся только последнее нужное состояние,
+     * а в конце цикла flushIntents отправляет его, если оно что-то меняет
+     * </p>
+     *
+     * @param device устройство
+     * @param status статус
+     */
+    private void manageDevice(Device device, boolean status) {
+        if (device.intent == NO_INTENT) {
+            if (intentTail == null) {
+                intentHead = device;
+            } else {
+                intentTail.nextIntent = device;
+            }
+            intentTail = device;
+        } else {
+            metrics.setStatusCoalesced.increment();
+        }
+        device.intent = (byte) (status ? 1 : 0);
+    }
+
+    /**
+     * Отправка команд, накопленных за цикл, в порядке первой команды каждой цели
+     */
+    private void flushIntents() {
+        var device = intentHead;
+        intentHead = null;
+        intentTail = null;
+        while (device != null) {
+            var next = device.nextIntent;
+            device.nextIntent = null;
+            var status = device.intent == 1;
+            device.intent = NO_INTENT;
+            if (needsSetStatus(device, status)) {
+                commandStatus(device, status);
+            } else {
+                metrics.setStatusCoalesced.increment();
+            }
+            device = next;
+        }
+    }
+
+    /**
+     * Отправка SETSTATUS с запоминанием отправленного состояния до ответа устройства
+     *
+     * @param device устройство
+     * @param status статус
+     */
+    private void commandStatus(Device device, boolean status) {
+        var commandBody = new Payload.CmdBodyStatus();
+        commandBody.status = status;
+        sentSetStatus(device, commandBody);
+        device.requestsInFlight++;
+        device.commanded = (byte) (status ? 1 : 0);
+    }
+
+    /**
+     * Нужна ли устройству команда SETSTATUS
+     * <p>
+     * Сравнивается с состоянием, которое будет у устройства после уже отправленных команд,
+     * а если их нет - с последним известным
+     * </p>
+     *
+     * @param device устройство
+     * @param status статус
+     * @return true, если устройство управляемое и его ожидаемое состояние отличается от нужного
+     */
+    private static boolean needsSetStatus(Device device, boolean status) {
+        // Проверяем тип устройства
+        if (device.getType() != DEVICE_TYPES_ENUM.Lamp && device.getType() != DEVICE_TYPES_ENUM.Socket) {
+            return false;
+        }
+
+        if (device.commanded != NO_INTENT) {
+            return (device.commanded == 1) != status;
+        }
+        if (device instanceof Lamp) {
+            return ((Lamp) device).status != status;
+        } else if (device instanceof Socket) {
+            return ((Socket) device).status != status;
+        }
+        return true;
+    }
+
+    /**
+     * Обработка пакета WHOISHERE
+     *
+     * @param payload тело пакета
+     */
+    private void processWhoIsHere(Payload payload) {
+        // Добавляем устройство в список, реестр сам вытеснит прежнюю запись с тем же именем или адресом
+        var newDevice = decodeDeviceFromBytes(payload);
+        if (newDevice != null) {
+            devices.put(newDevice);
+            metrics.devicesAdded.increment();
+            sentGetStatus(newDevice);
+        } else {
+            // Устройство неизвестного типа всё равно занимает своё имя
+            if (devices.removeByName(((Payload.CmdBodyDevice) payload.cmd_body).dev_name) != null) {
+                metrics.devicesRemoved.increment();
+            }
+        }
+    }
+
+    /**
+     * Обработка пакета IAMHERE
+     *
+     * @param payload тело пакета
+     */
+    private void processIAmHere(Payload payload) {
+        // Добавляем устройство в список
+        var device = decodeDeviceFromBytes(payload);
+
+        if (device == null) {
+            return;
+        }
+        // Проверяем, успело ли устройство ответить за 300мс
+        if (getInterval(whoIsHereTimestamp, currentTimestamp) > RESPONSE_TIMEOUT) {
+            return;
+        }
+
+        devices.put(device);
+        metrics.devicesAdded.increment();
+
+        // Отправляем запрос на получение статуса устройства
+        sentGetStatus(device);
+    }
+
+    /**
+     * Обработка пакета STATUS
+     *
+     * @param payload тело пакета
+     * @param buffer  буфер с данными
+     */
+    private void processStatus(Payload payload, ByteBuffer buffer) {
+        // Есть ли ожидание ответа от устройства по адресу
+        var time = waitingResponses.poll(payload.src);
+        // Если есть, проверяем, успело ли устройство ответить за 300мс
+        if (time != PendingResponses.NOT_WAITING && getInterval(time, currentTimestamp) > RESPONSE_TIMEOUT) {
+            // Удаляем устройство из списка, если не успело ответить
+            deleteDeviceByAddress(payload.src);
+            waitingResponses.clear(payload.src);
+            return;
+        }
+
+        // Обновляем данные устройства если оно успело ответить или самостоятельно отправило данные
+        var device = devices.get(payload.src);
+        if (device != null) {
+            // Ответы приходят по порядку запросов: после ответа на последний запрос
+            // отправленных команд больше нет, и ожидаемое состояние - известное.
+            // STATUS, которого не ждали (переключатель или датчик сам прислал показания, или ожидание
+            // отправленного запроса ещё не зарегистрировано в конвейерном режиме), запросов не закрывает
+            if (time != PendingResponses.NOT_WAITING && device.requestsInFlight > 0 && --device.requestsInFlight == 0) {
+                device.commanded = NO_INTENT;
+            }
+            // Устройства с целями попадают в список обновлённых в порядке первого STATUS
+            if (device.targets.length > 0) {
+                device.markUpdated();
+            }
+            if (devices.history != null && device instanceof EnvSensor sensor && !sensor.historyQueued) {
+                sensor.historyQueued = true;
+                historyQueue.add(sensor);
+            }
+            if (shards != null) {
+                shards.route(device, buffer);
+            } else {
+                device.setData(buffer);
+            }
+        }
+    }
+
+    /**
+     * Обработка пакета TICK
+     *
+     * @param payload тело пакета
+     */
+    private void processTICK(Payload payload) {
+        currentTimestamp = ((Payload.CmdBodyTimer) payload.cmd_body).timestamp;
+        if (whoIsHereTimestamp == -1) {
+            whoIsHereTimestamp = currentTimestamp;
+        }
+    }
+
+    /**
+     * Обработка обновления устройств
+     * <p>
+     * Проходит только по устройствам из списка обновлённых, а не по всему реестру
+     * </p>
+     */
+    void processUpdateDevices() {
+        // Датчики с незавершённой выдержкой перепроверяются по времени нового TICK, даже если STATUS от них не было
+        for (var sensor : dwellingSensors) {
+            if (devices.get(sensor.address) == sensor) {
+                sensor.markUpdated();
+            }
+        }
+        dwellingSensors.clear();
+        var device = updatedHead;
+        updatedHead = null;
+        updatedTail = null;
+        if (shards != null) {
+            shards.process(device);
+            return;
+        }
+        processUpdatedList(device);
+        flushIntents();
+    }
+
+    /**
+     * Проверка переключателей и датчиков из списка обновлённых
+     *
+     * @param device начало списка
+     */
+    private void processUpdatedList(Device device) {
+        while (device != null) {
+            var next = device.nextUpdated;
+            device.nextUpdated = null;
+            device.updated = false;
+            // Пропускаем устройства, удалённые из реестра после обновления
+            if (devices.get(device.address) == device) {
+                switch (device.getType()) {
+                    case Switch -> {
+                        var switchDevice = (Switch) device;
+                        for (var target : switchDevice.targets) {
+                            if (target.device != null) {
+                                manageDevice(target.device, switchDevice.status);
+                            }
+                        }
+                    }
+                    case EnvSensor -> {
+                        var envSensor = (EnvSensor) device;
+                        // Проверяем только триггеры, условие которых изменилось
+                        int fired = envSensor.checkTriggers(currentTimestamp);
+                        metrics.triggersFired.add(fired);
+                        for (int i = 0; i < fired; i++) {
+                            var trigger = envSensor.triggers.get(envSensor.fired[i]);
+                            if (trigger.target.device != null) {
+                                manageDevice(trigger.target.device, trigger.enabled);
+                            }
+                        }
+                        if (envSensor.dwelling()) {
+                            dwellingSensors.add(envSensor);
+                        }
+                    }
+                }
+            }
+            device = next;
+        }
+    }
+
+    /**
+     * Обработка ответа от сервера
+     *
+     * @param response ответ от сервера
+     */
+    void processResponse(ByteBuffer response) {
+        packetDecoder.reset();
+        packetDecoder.accept(response);
+        finishResponse();
+    }
+
+    /**
+     * Завершение обработки ответа, все пакеты которого уже переданы в packetDecoder
+     */
+    private void finishResponse() {
+        packetDecoder.finish();
+        if (journal != null) {
+            journal.responseEnd(currentTimestamp);
+        }
+        metrics.phases[Metrics.PHASE_DECODE].record(packetDecoder.decodeNanos);
+        // Обновляем устройства
+        long started = System.nanoTime();
+        processUpdateDevices();
+        if (!historyQueue.isEmpty()) {
+            recordHistory();
+        }
+        long updated = System.nanoTime();
+        metrics.phases[Metrics.PHASE_UPDATE].record(updated - started);
+        // Проверяем выключенные устройства
+        processDisabledDevices();
+        metrics.phases[Metrics.PHASE_EXPIRE].record(System.nanoTime() - updated);
+
+        if (restoredDevices != null && whoIsHereTimestamp != -1) {
+            revalidateRestored();
+        }
+        // Пока поток записи занят прошлым снимком, новый не кодируется: попробуем на следующем ответе
+        if (snapshotWriter != null && ++responsesSinceSnapshot >= options.snapshotEvery && snapshotWriter.idle()) {
+            responsesSinceSnapshot = 0;
+            snapshotBuffer = snapshotWriter.submit(snapshotBuffer, encodeSnapshot());
+        }
+    }
+
+    /**
+     * Запись показаний датчиков, приславших STATUS, в историю
+     * <p>
+     * Пишется одна точка на датчик за ответ, с временем TICK этого ответа и уже применёнными показаниями,
+     * поэтому история одинакова в однопоточном и шардированном режимах. Ряд выделяется на первом STATUS
+     * с показанием этого типа; если бюджет был исчерпан, выделение повторяется на следующих STATUS.
+     * Датчик, вытесненный из реестра в том же ответе, уже вернул свои ряды и не пишется.
+     * </p>
+     */
+    private void recordHistory() {
+        var history = devices.history;
+        for (var sensor : historyQueue) {
+            sensor.historyQueued = false;
+            if (devices.get(sensor.address) != sensor) {
+                continue;
+            }
+            for (int type = 0; type < SENSOR_TYPES; type++) {
+                int reading = sensor.reading(type);
+                if (sensor.series[type] == -1 && reading != -1) {
+                    sensor.series[type] = history.allocate();
+                }
+                if (sensor.series[type] != -1) {
+                    history.append(sensor.series[type], currentTimestamp, reading);
+                }
+            }
+        }
+        historyQueue.clear();
+    }
+
+    /**
+     * Проверка выключенных устройств
+     */
+    private void processDisabledDevices() {
+        // Просматриваем только запросы, не обработанные за 300мс
+        short address;
+        while ((address = waitingResponses.pollExpired(currentTimestamp - RESPONSE_TIMEOUT)) != PendingResponses.NONE) {
+            // Удаляем устройство из списка, если не успело ответить
+            deleteDeviceByAddress(address);
+        }
+    }
+
+    /**
+     * Шардированная обработка ответа для очень больших сетей
+     * <p>
+     * Устройства делятся по адресу между потоками-шардами. Главный поток по-прежнему разбирает
+     * поток пакетов, проверяет CRC, обрабатывает служебные команды и ожидания ответов, а тело STATUS
+     * копирует в очередь шарда устройства-отправителя. В конце ответа работают две фазы:
+     * </p>
+     * <ol>
+     *     <li>каждый шард применяет свои STATUS в порядке прихода и проверяет свои переключатели и датчики;
+     *     команда цели уходит через неблокирующую очередь в шард цели;</li>
+     *     <li>шард цели сортирует команды, оставляет каждой цели последнее нужное состояние
+     *     и отбрасывает команды, которые его не меняют.</li>
+     * </ol>
+     * <p>
+     * Ключ команды - порядковый номер источника в списке обновлённых и номер цели у источника,
+     * поэтому после слияния на главном потоке команды и их серийные номера идут в том же порядке,
+     * что и в однопоточном режиме.
+     * </p>
+     */
+    class Shards implements Closeable {
+        private final Shard[] shards;
+        private final List<Callable<Void>> applyPhase = new ArrayList<>();
+        private final List<Callable<Void>> collectPhase = new ArrayList<>();
+        private final ExecutorService workers;
+        // Обновлённые датчики текущего ответа в порядке списка обновлённых
+        private final ArrayList<EnvSensor> sensors = new ArrayList<>();
+
+        Shards(int count) {
+            shards = new Shard[count];
+            for (int i = 0; i < count; i++) {
+                var shard = shards[i] = new Shard();
+                applyPhase.add(() -> {
+                    shard.apply();
+                    return null;
+                });
+                collectPhase.add(() -> {
+                    shard.collect();
+                    return null;
+                });
+            }
+            workers = Executors.newFixedThreadPool(count, new ThreadFactory() {
+                private int next;
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    var thread = new Thread(runnable, "hub-shard-" + next++);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        private Shard shardOf(Device device) {
+            return shards[device.address % shards.length];
+        }
+
+        /**
+         * Передать тело STATUS в шард устройства
+         *
+         * @param device устройство
+         * @param buffer тело пакета
+         */
+        void route(Device device, ByteBuffer buffer) {
+            shardOf(device).route(device, buffer);
+        }
+
+        /**
+         * Обработка списка обновлённых устройств на шардах
+         *
+         * @param head начало списка обновлённых устройств
+         */
+        void process(Device head) {
+            int ordinal = 0;
+            for (var device = head; device != null; ) {
+                var next = device.nextUpdated;
+                device.nextUpdated = null;
+                device.updated = false;
+                // Пропускаем устройства, удалённые из реестра после обновления
+                if (devices.get(device.address) == device) {
+                    shardOf(device).updated(device, ordinal++);
+                    if (device instanceof EnvSensor sensor) {
+                        sensors.add(sensor);
+                    }
+                }
+                device = next;
+            }
+
+            invokeAll(applyPhase);
+            // Датчики с незавершённой выдержкой в том же порядке, что и в однопоточном режиме
+            for (var sensor : sensors) {
+                if (sensor.dwelling()) {
+                    dwellingSensors.add(sensor);
+                }
+            }
+            sensors.clear();
+            invokeAll(collectPhase);
+
+            // Слияние отсортированных команд шардов по ключу
+            while (true) {
+                Shard first = null;
+                for (var shard : shards) {
+                    if (shard.hasIntent() && (first == null || shard.intentKey() < first.intentKey())) {
+                        first = shard;
+                    }
+                }
+                if (first == null) {
+                    break;
+                }
+                var intent = first.nextIntent();
+                commandStatus(intent.target, intent.status);
+            }
+        }
+
+        private void invokeAll(List<Callable<Void>> phase) {
+            try {
+                for (var future : workers.invokeAll(phase)) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                throw new IllegalStateException("Shard failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted", e);
+            }
+        }
+
+        @Override
+        public void close() {
+            workers.shutdownNow();
+        }
+
+
+        /**
+         * Команда устройству-цели от переключателя или триггера
+         *
+         * @param key    порядок команды: номер источника в списке обновлённых и номер цели у источника
+         * @param target устройство-цель
+         * @param status нужное состояние
+         */
+        private record Intent(long key, Device target, boolean status) {
+        }
+
+        /**
+         * Шард: STATUS и обновления его устройств, а также входящие команды для его устройств
+         */
+        class Shard {
+            // Тела STATUS текущего ответа, уложенные подряд, в порядке прихода
+            private byte[] bodies = new byte[1024];
+            private ByteBuffer bodyView = ByteBuffer.wrap(bodies);
+            private int bodiesLength;
+            private Device[] statusDevices = new Device[64];
+            private int[] statusEnds = new int[64];
+            private int statusCount;
+            // Обновлённые устройства шарда и их номера в общем списке обновлённых
+            private Device[] updated = new Device[64];
+            private int[] ordinals = new int[64];
+            private int updatedCount;
+            // Команды для устройств шарда от всех шардов
+            private final ConcurrentLinkedQueue<Intent> inbox = new ConcurrentLinkedQueue<>();
+            // Команды, пришедшие за цикл
+            private final ArrayList<Intent> received = new ArrayList<>();
+            // Команды, которые нужно отправить, по возрастанию ключа
+            private final ArrayList<Intent> outgoing = new ArrayList<>();
+            private int outgoingIndex;
+
+            void route(Device device, ByteBuffer buffer) {
+                int length = buffer.remaining();
+                if (bodiesLength + length > bodies.length) {
+                    bodies = Arrays.copyOf(bodies, Math.max(bodies.length * 2, bodiesLength + length));
+                    bodyView = ByteBuffer.wrap(bodies);
+                }
+                buffer.get(buffer.position(), bodies, bodiesLength, length);
+                bodiesLength += length;
+                if (statusCount == statusDevices.length) {
+                    statusDevices = Arrays.copyOf(statusDevices, statusCount * 2);
+                    statusEnds = Arrays.copyOf(statusEnds, statusCount * 2);
+                }
+                statusDevices[statusCount] = device;
+                statusEnds[statusCount++] = bodiesLength;
+            }
+
+            void updated(Device device, int ordinal) {
+                if (updatedCount == updated.length) {
+                    updated = Arrays.copyOf(updated, updatedCount * 2);
+                    ordinals = Arrays.copyOf(ordinals, updatedCount * 2);
+                }
+                updated[updatedCount] = device;
+                ordinals[updatedCount++] = ordinal;
+            }
+
+            /**
+             * Первая фаза: применить STATUS и проверить переключатели и датчики шарда
+             */
+            void apply() {
+                int start = 0;
+                for (int i = 0; i < statusCount; i++) {
+                    bodyView.clear().position(start).limit(statusEnds[i]);
+                    statusDevices[i].setData(bodyView);
+                    statusDevices[i] = null;
+                    start = statusEnds[i];
+                }
+                statusCount = 0;
+                bodiesLength = 0;
+
+                for (int i = 0; i < updatedCount; i++) {
+                    var device = updated[i];
+                    updated[i] = null;
+                    long key = (long) ordinals[i] << 8;
+                    switch (device.getType()) {
+                        case Switch -> {
+                            var switchDevice = (Switch) device;
+                            var targets = switchDevice.targets;
+                            for (int j = 0; j < targets.length; j++) {
+                                if (targets[j].device != null) {
+                                    send(new Intent(key | j, targets[j].device, switchDevice.status));
+                                }
+                            }
+                        }
+                        case EnvSensor -> {
+                            var envSensor = (EnvSensor) device;
+                            int fired = envSensor.checkTriggers(currentTimestamp);
+                            metrics.triggersFired.add(fired);
+                            for (int k = 0; k < fired; k++) {
+                                int j = envSensor.fired[k];
+                                var trigger = envSensor.triggers.get(j);
+                                if (trigger.target.device != null) {
+                                    send(new Intent(key | j, trigger.target.device, trigger.enabled));
+                                }
+                            }
+                        }
+                    }
+                }
+                updatedCount = 0;
+            }
+
+            private void send(Intent intent) {
+                shardOf(intent.target()).inbox.add(intent);
+            }
+
+            /**
+             * Вторая фаза: упорядочить команды устройствам шарда, оставить у каждой цели последнее
+             * нужное состояние и отбросить команды, которые ничего не меняют
+             */
+            void collect() {
+                received.clear();
+                Intent intent;
+                while ((intent = inbox.poll()) != null) {
+                    received.add(intent);
+                }
+                received.sort(Comparator.comparingLong(Intent::key));
+
+                // Цели в порядке первой команды; последнее состояние копится в поле intent цели
+                outgoing.clear();
+                outgoingIndex = 0;
+                for (var next : received) {
+                    var target = next.target();
+                    if (target.intent == NO_INTENT) {
+                        outgoing.add(next);
+                    } else {
+                        metrics.setStatusCoalesced.increment();
+                    }
+                    target.intent = (byte) (next.status() ? 1 : 0);
+                }
+                int kept = 0;
+                for (var first : outgoing) {
+                    var target = first.target();
+                    var status = target.intent == 1;
+                    target.intent = NO_INTENT;
+                    if (needsSetStatus(target, status)) {
+                        outgoing.set(kept++, new Intent(first.key(), target, status));
+                    } else {
+                        metrics.setStatusCoalesced.increment();
+                    }
+                }
+                outgoing.subList(kept, outgoing.size()).clear();
+            }
+
+            boolean hasIntent() {
+                return outgoingIndex < outgoing.size();
+            }
+
+            long intentKey() {
+                return outgoing.get(outgoingIndex).key();
+            }
+
+            Intent nextIntent() {
+                return outgoing.get(outgoingIndex++);
+            }
+        }
+    }
+
+    /**
+     * Кодирование снимка состояния: реестр устройств со свойствами и состоянием, счётчик пакетов и время
+     * <p>
+     * Свойства устройств кодируются заново из разобранных структур в том же формате, что и в IAMHERE,
+     * а состояние - в формате тела STATUS, поэтому восстановление идёт через обычный разбор.
+     * Кодирует поток опроса, которому принадлежит реестр; на диск снимок переносит SnapshotWriter.
+     * </p>
+     *
+     * @return данные снимка в snapshotBuffer, от position до limit
+     */
+    private ByteBuffer encodeSnapshot() {
+        snapshotBuffer.clear();
+        var buffer = snapshotBuffer.reserve(32);
+        buffer.putShort(hubAddress);
+        writeULEB128(buffer, serialCounter);
+        writeULEB128(buffer, currentTimestamp);
+        writeULEB128(buffer, devices.size());
+        for (var device : devices.values()) {
+            // Адрес, тип и имя - до 259 байт, свойства и состояние - не больше тела пакета каждое
+            buffer = snapshotBuffer.reserve(4 + 256 + 2 * (2 + MAX_PAYLOAD_SIZE));
+            writeULEB128(buffer, device.address);
+            buffer.put(device.getType().getValue());
+            encodeStringToBytes(buffer, device.name);
+            int section = beginSnapshotSection(buffer);
+            encodeDeviceProps(buffer, device);
+            endSnapshotSection(buffer, section);
+            section = beginSnapshotSection(buffer);
+            encodeDeviceState(buffer, device);
+            endSnapshotSection(buffer, section);
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Начало участка снимка: место под длину в два байта
+     *
+     * @return начало участка
+     */
+    private static int beginSnapshotSection(ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.position(start + 2);
+        return start;
+    }
+
+    private static void endSnapshotSection(ByteBuffer buffer, int start) {
+        buffer.putShort(start, (short) (buffer.position() - start - 2));
+    }
+
+    /**
+     * Свойства устройства в формате тела IAMHERE
+     */
+    private void encodeDeviceProps(ByteBuffer buffer, Device device) {
+        if (device instanceof Switch) {
+            buffer.put((byte) device.targets.length);
+            for (var target : device.targets) {
+                encodeStringToBytes(buffer, target.name);
+            }
+        } else if (device instanceof EnvSensor envSensor) {
+            buffer.put((byte) ((envSensor.temperature != -1 ? 0x1 : 0) | (envSensor.humidity != -1 ? 0x2 : 0)
+                    | (envSensor.illumination != -1 ? 0x4 : 0) | (envSensor.airPollution != -1 ? 0x8 : 0)));
+            buffer.put((byte) envSensor.triggers.size());
+            for (var trigger : envSensor.triggers) {
+                buffer.put((byte) ((trigger.enabled ? 0x01 : 0) | (trigger.more ? 0x02 : 0) | trigger.sensorType << 2));
+                writeULEB128(buffer, trigger.value);
+                encodeStringToBytes(buffer, trigger.target.name);
+            }
+        }
+    }
+
+    /**
+     * Состояние устройства в формате тела STATUS
+     */
+    private void encodeDeviceState(ByteBuffer buffer, Device device) {
+        if (device instanceof Lamp lamp) {
+            buffer.put((byte) (lamp.status ? 1 : 0));
+        } else if (device instanceof Socket socket) {
+            buffer.put((byte) (socket.status ? 1 : 0));
+        } else if (device instanceof Switch switchDevice) {
+            buffer.put((byte) (switchDevice.status ? 1 : 0));
+        } else if (device instanceof EnvSensor envSensor) {
+            int[] values = {envSensor.temperature, envSensor.humidity, envSensor.illumination, envSensor.airPollution};
+            int start = buffer.position();
+            buffer.put((byte) 0);
+            for (int value : values) {
+                if (value != -1) {
+                    writeULEB128(buffer, value);
+                    buffer.put(start, (byte) (buffer.get(start) + 1));
+                }
+            }
+        }
+    }
+
+    /**
+     * Восстановление состояния из снимка
+     * <p>
+     * Устройства сразу попадают в реестр и управляются по первому же STATUS. После первого ответа
+     * тем из них, кто не ответил на WHOISHERE, уходит GETSTATUS: не ответившие за 300мс будут удалены.
+     * </p>
+     *
+     * @param buffer данные снимка
+     * @return true, если снимок принадлежит этому хабу и восстановлен
+     */
+    private boolean restoreSnapshot(ByteBuffer buffer) {
+        if (buffer.getShort() != hubAddress) {
+            return false;
+        }
+        var serial = readULEB128(buffer);
+        // Время из снимка не восстанавливаем: окно ответа на WHOISHERE считается от первого TICK после запуска
+        readULEB128(buffer);
+        int count = (int) readULEB128(buffer);
+        // Реестр заполняется только после разбора всего снимка, чтобы испорченный снимок не оставил половину
+        var restored = new ArrayList<Device>(count);
+        for (int i = 0; i < count; i++) {
+            var body = new Payload.CmdBodyDevice();
+            var payload = Payload.create()
+                    .setSrc((short) readULEB128(buffer))
+                    .setDevType(buffer.get())
+                    .setCmdBody(body);
+            body.dev_name = decodeStringFromBytes(buffer);
+            body.dev_props = readSnapshotSection(buffer);
+            var state = readSnapshotSection(buffer);
+            var device = decodeDeviceFromBytes(payload);
+            if (device != null) {
+                if (state.hasRemaining()) {
+                    device.setData(state);
+                }
+                restored.add(device);
+            }
+        }
+
+        for (var device : restored) {
+            devices.put(device);
+        }
+        restoredDevices = restored;
+        serialCounter = serial;
+        return true;
+    }
+
+    private static ByteBuffer readSnapshotSection(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        var section = buffer.slice(buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        return section;
+    }
+
+    /**
+     * Перепроверка восстановленных устройств, которые не объявились заново
+     */
+    private void revalidateRestored() {
+        for (var device : restoredDevices) {
+            if (devices.get(device.address) == device) {
+                sentGetStatus(device);
+            }
+        }
+        restoredDevices = null;
+    }
+
+    /**
+     * Файл снимка состояния хаба, отображённый в память
+     * <p>
+     * В файле два слота. Новый снимок пишется в слот, где лежит более старый, и поколение записывается
+     * последним, поэтому оборванная запись не портит предыдущий снимок. При чтении берётся слот
+     * с наибольшим поколением и верной контрольной суммой.
+     * </p>
+     * <p>
+     * Файл никогда не усекается. Если снимок перерос слот, новая пара слотов размечается за концом
+     * текущей, снимок пишется туда и сбрасывается на диск, и только потом заголовок переключается на
+     * новую пару одной выровненной 8-байтной записью. До этого момента заголовок указывает на старые
+     * слоты, поэтому при любом обрыве в файле остаётся целый снимок. Старая пара остаётся мёртвым местом;
+     * слоты растут вдвое, так что файл не больше трёх размеров последней пары.
+     * </p>
+     * <pre>
+     * заголовок: magic (4), версия (4), размер слота (4), смещение пары слотов (4, 0 - сразу за заголовком)
+     * слот:      поколение (8), длина данных (4), CRC32 данных (4), данные
+     * </pre>
+     */
+    static class SnapshotFile implements Closeable {
+        private static final int MAGIC = 0x53484853; // SHHS
+        private static final int VERSION = 1;
+        private static final int HEADER_SIZE = 16;
+        private static final int SLOT_HEADER_SIZE = 16;
+        private static final int INITIAL_SLOT_SIZE = 64 * 1024;
+
+        private final FileChannel channel;
+        private MappedByteBuffer map;
+        private int slotSize;
+        private int slotBase;
+        private long generation;
+
+        SnapshotFile(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() >= HEADER_SIZE + 2L * SLOT_HEADER_SIZE) {
+                var header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                if (header.getInt(0) == MAGIC && header.getInt(4) == VERSION) {
+                    int size = header.getInt(8);
+                    int base = header.getInt(12) == 0 ? HEADER_SIZE : header.getInt(12);
+                    if (size >= SLOT_HEADER_SIZE && base >= HEADER_SIZE && channel.size() >= base + 2L * size) {
+                        mapSlots(base, size);
+                        return;
+                    }
+                }
+            }
+            // Новый или чужой файл размечается с начала; о потерянном содержимом чужого файла сообщаем
+            if (channel.size() > 0) {
+                System.err.println("snapshot file " + path + " has an unknown format or version, starting a new one");
+            }
+            mapSlots(HEADER_SIZE, INITIAL_SLOT_SIZE);
+            clearSlots();
+            map.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, layout());
+            map.force();
+        }
+
+        private void mapSlots(int base, int size) throws IOException {
+            long end = base + 2L * size;
+            if (end > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot slots do not fit into a mapping: " + end + " bytes");
+            }
+            slotBase = base;
+            slotSize = size;
+            // Отображение за концом файла удлиняет файл
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, end);
+        }
+
+        private void clearSlots() {
+            for (int slot = 0; slot < 2; slot++) {
+                map.putLong(slotOffset(slot), 0).putInt(slotOffset(slot) + 8, 0);
+            }
+        }
+
+        // Размер слота и смещение пары - одно 8-байтное слово заголовка
+        private long layout() {
+            return (long) slotSize << 32 | slotBase;
+        }
+
+        private int slotOffset(int slot) {
+            return slotBase + slot * slotSize;
+        }
+
+        /**
+         * Чтение последнего целого снимка
+         *
+         * @return данные снимка или null, если снимка нет
+         */
+        ByteBuffer load() {
+            ByteBuffer best = null;
+            for (int slot = 0; slot < 2; slot++) {
+                int offset = slotOffset(slot);
+                long slotGeneration = map.getLong(offset);
+                int length = map.getInt(offset + 8);
+                if (slotGeneration <= generation || length <= 0 || length > slotSize - SLOT_HEADER_SIZE) {
+                    continue;
+                }
+                var data = map.slice(offset + SLOT_HEADER_SIZE, length);
+                var crc = new CRC32();
+                crc.update(data.duplicate());
+                if ((int) crc.getValue() == map.getInt(offset + 12)) {
+                    generation = slotGeneration;
+                    best = data;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Запись снимка в свободный слот
+         *
+         * @param data данные снимка от position до limit
+         */
+        void store(ByteBuffer data) throws IOException {
+            int length = data.remaining();
+            boolean grown = false;
+            if (length > slotSize - SLOT_HEADER_SIZE) {
+                // Новая пара за концом текущей; заголовок пока указывает на старую
+                int size = (int) Math.min(Integer.MAX_VALUE, Math.max(slotSize * 2L, length + (long) SLOT_HEADER_SIZE));
+                mapSlots(slotOffset(2), size);
+                clearSlots();
+                grown = true;
+            }
+            long next = generation + 1;
+            int offset = slotOffset((int) (next & 1));
+            // Сначала делаем слот недействительным, потом пишем данные, поколение - последним.
+            // Один сброс на диск: если поколение попало на диск раньше данных, слот не сойдётся по CRC32
+            // и при чтении возьмётся второй, который эта запись не трогала
+            map.putLong(offset, 0);
+            var crc = new CRC32();
+            crc.update(data.duplicate());
+            map.put(offset + SLOT_HEADER_SIZE, data, data.position(), length);
+            map.putInt(offset + 8, length).putInt(offset + 12, (int) crc.getValue());
+            map.putLong(offset, next);
+            map.force();
+            if (grown) {
+                // Переключаемся на новую пару, только когда в ней уже лежит целый снимок
+                map.putLong(8, layout());
+                map.force();
+            }
+            generation = next;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Фоновая запись снимков
+     * <p>
+     * Поток опроса только кодирует снимок в свой буфер и отдаёт его сюда, забирая взамен буфер,
+     * записанный в прошлый раз. Копирование в файл и сброс на диск идут в отдельном потоке, поэтому
+     * fsync не попадает в окно ответа. Одновременно пишется не больше одного снимка: пока поток занят,
+     * хаб новый снимок не кодирует. Последний снимок при завершении пишется синхронно после остановки потока.
+     * </p>
+     */
+    static class SnapshotWriter implements Closeable {
+        private final SnapshotFile file;
+        private final Thread writer;
+        // Буфер снимка, отданного на запись; принадлежит потоку записи, пока busy
+        private EncodeBuffer buffer = new EncodeBuffer();
+        private ByteBuffer data;
+        private volatile boolean busy;
+        private volatile boolean closed;
+        // Об ошибке записи снимка сообщается один раз
+        private boolean failed;
+
+        SnapshotWriter(SnapshotFile file) {
+            this.file = file;
+            writer = new Thread(this::writeLoop, "hub-snapshot");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        /**
+         * Записан ли отданный снимок
+         *
+         * @return true, если можно отдавать следующий
+         */
+        boolean idle() {
+            return !busy;
+        }
+
+        /**
+         * Отдать снимок на запись; вызывается, только когда idle()
+         *
+         * @param encoded буфер, в котором закодирован снимок
+         * @param data    данные снимка в этом буфере
+         * @return буфер для кодирования следующего снимка
+         */
+        EncodeBuffer submit(EncodeBuffer encoded, ByteBuffer data) {
+            var free = buffer;
+            buffer = encoded;
+            this.data = data;
+            busy = true;
+            LockSupport.unpark(writer);
+            return free;
+        }
+
+        private void writeLoop() {
+            while (true) {
+                if (busy) {
+                    store(data);
+                    data = null;
+                    busy = false;
+                } else if (closed) {
+                    return;
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+        }
+
+        /**
+         * Запись снимка в текущем потоке; после close() - для последнего снимка при завершении
+         *
+         * @param data данные снимка от position до limit
+         */
+        void store(ByteBuffer data) {
+            try {
+                file.store(data);
+            } catch (IOException | RuntimeException e) {
+                // Снимок только ускоряет перезапуск; ошибка записи не должна останавливать хаб, но молчать о ней нельзя
+                if (!failed) {
+                    failed = true;
+                    System.err.println("snapshot write failed: " + e);
+                }
+            }
+        }
+
+        /**
+         * Дождаться записи отданного снимка и остановить поток
+         */
+        @Override
+        public void close() {
+            closed = true;
+            LockSupport.unpark(writer);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Журнал пакетов: сырые входящие и исходящие пакеты с временем последнего TICK
+     * <p>
+     * Цикл опроса только дописывает записи в буфер в памяти и в конце ответа отдаёт его фоновому потоку
+     * через неблокирующую очередь. Фоновый поток переносит буферы в отображённые в память сегменты
+     * заранее заданного размера, открывает следующий сегмент, когда текущий заполнен, удаляя самые старые
+     * сверх заданного числа, и сбрасывает
+     * на диск всё накопленное разом (групповая фиксация). Если поток записи не успевает, записи
+     * текущего ответа отбрасываются и учитываются в метриках - цикл опроса никогда не ждёт диск.
+     * </p>
+     * <pre>
+     * сегмент: magic (4), версия (4), номер сегмента (4), резерв (4), записи..., 0
+     * запись:  тип (1), время TICK (8), длина (4), данные
+     * </pre>
+     */
+    static class Journal implements Closeable {
+        static final byte END_OF_SEGMENT = 0;
+        // Начало работы хаба; данные - адрес хаба (2 байта) и флаги (1 байт)
+        static final byte START = 1;
+        // Входящий пакет целиком: длина, тело, CRC
+        static final byte INBOUND = 2;
+        // Исходящий запрос: подряд идущие пакеты; ожидания ответа зарегистрированы сразу
+        static final byte OUTBOUND = 3;
+        // Исходящий запрос, ожидания ответа которого регистрируются после разбора текущего ответа
+        static final byte OUTBOUND_DEFERRED = 4;
+        // Конец ответа сервера
+        static final byte RESPONSE_END = 5;
+        // Пропуск: записи перед этой были отброшены, потому что поток записи не успевал или запись не удалась
+        static final byte GAP = 6;
+        // Флаг START: состояние хаба восстановлено из снимка
+        static final byte FLAG_RESTORED = 0x01;
+
+        static final int MAGIC = 0x53484a4c; // SHJL
+        static final int VERSION = 1;
+        static final int SEGMENT_HEADER_SIZE = 16;
+        static final int RECORD_HEADER_SIZE = 13;
+        private static final int MAX_PENDING_BATCHES = 256;
+        private static final long COMMIT_INTERVAL_NANOS = 5_000_000L;
+
+        /**
+         * Записи одного или нескольких ответов, подряд
+         */
+        private static class Batch {
+            ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+
+            ByteBuffer reserve(int size) {
+                if (buffer.remaining() < size) {
+                    var bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + size));
+                    buffer.flip();
+                    bigger.put(buffer);
+                    buffer = bigger;
+                }
+                return buffer;
+            }
+        }
+
+        private final Path directory;
+        private final long segmentSize;
+        private final int maxSegments;
+        private final LongAdder dropped;
+        private final ConcurrentLinkedQueue<Batch> pending = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Batch> free = new ConcurrentLinkedQueue<>();
+        private final Thread writer;
+        private volatile boolean closed;
+        // Буфер текущего ответа; принадлежит циклу опроса
+        private Batch current = new Batch();
+        private int batches = 1;
+        private boolean dropping;
+        // Текущий сегмент; принадлежат потоку записи
+        private FileChannel channel;
+        private MappedByteBuffer segment;
+        private int segmentIndex;
+        // Последний пакет записей потерян при записи; об ошибке сообщается один раз
+        private boolean writeFailed;
+        private boolean reported;
+        // Сегменты в каталоге от старого к новому, включая текущий
+        private final ArrayDeque<Path> segmentFiles = new ArrayDeque<>();
+
+        /**
+         * Открытие журнала: новые сегменты создаются после уже существующих
+         * <p>
+         * При открытии нового сегмента самые старые удаляются, чтобы в каталоге оставалось не больше
+         * maxSegments сегментов вместе с текущим. Журнал без начала воспроизводится с первой записи START.
+         * </p>
+         *
+         * @param directory   каталог журнала
+         * @param segmentSize размер сегмента в байтах
+         * @param maxSegments сколько сегментов хранить (0 - не удалять)
+         * @param dropped     счётчик отброшенных записей
+         * @param hubAddress  адрес хаба для записи START
+         * @param flags       флаги для записи START
+         */
+        Journal(Path directory, long segmentSize, int maxSegments, LongAdder dropped, short hubAddress, byte flags)
+                throws IOException {
+            this.directory = directory;
+            this.segmentSize = segmentSize;
+            this.maxSegments = maxSegments;
+            this.dropped = dropped;
+            Files.createDirectories(directory);
+            for (var file : segments(directory)) {
+                segmentIndex = Math.max(segmentIndex, segmentIndex(file));
+                segmentFiles.add(file);
+            }
+            openSegment(RECORD_HEADER_SIZE);
+
+            var start = current.reserve(RECORD_HEADER_SIZE + 3);
+            start.put(START).putLong(0).putInt(3).putShort(hubAddress).put(flags);
+
+            writer = new Thread(this::writeLoop, "hub-journal");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        /**
+         * Сегменты журнала в каталоге по порядку
+         *
+         * @param directory каталог журнала
+         * @return файлы сегментов
+         */
+        static List<Path> segments(Path directory) throws IOException {
+            try (var files = Files.list(directory)) {
+                return files.filter(file -> file.getFileName().toString().matches("journal-\\d+\\.seg"))
+                        .sorted(Comparator.comparingInt(Journal::segmentIndex))
+                        .toList();
+            }
+        }
+
+        private static int segmentIndex(Path file) {
+            var name = file.getFileName().toString();
+            return Integer.parseInt(name.substring("journal-".length(), name.length() - ".seg".length()));
+        }
+
+        /**
+         * Запись входящего пакета
+         *
+         * @param buffer буфер с пакетом
+         * @param offset начало пакета (байт длины)
+         * @param length длина пакета вместе с байтом длины и CRC
+         * @param tick   время последнего TICK
+         */
+        void inbound(ByteBuffer buffer, int offset, int length, long tick) {
+            if (dropping) {
+                return;
+            }
+            var out = current.reserve(RECORD_HEADER_SIZE + length);
+            out.put(INBOUND).putLong(tick).putInt(length);
+            out.put(out.position(), buffer, offset, length);
+            out.position(out.position() + length);
+        }
+
+        /**
+         * Запись исходящего запроса
+         *
+         * @param packets  закодированные пакеты
+         * @param length   длина пакетов
+         * @param deferred ожидания ответа регистрируются после разбора текущего ответа
+         * @param tick     время последнего TICK
+         */
+        void outbound(byte[] packets, int length, boolean deferred, long tick) {
+            if (dropping) {
+                return;
+            }
+            var out = current.reserve(RECORD_HEADER_SIZE + length);
+            out.put(deferred ? OUTBOUND_DEFERRED : OUTBOUND).putLong(tick).putInt(length);
+            out.put(packets, 0, length);
+        }
+
+        /**
+         * Конец ответа: записи отдаются потоку записи
+         *
+         * @param tick время последнего TICK
+         */
+        void responseEnd(long tick) {
+            if (!dropping) {
+                current.reserve(RECORD_HEADER_SIZE).put(RESPONSE_END).putLong(tick).putInt(0);
+            }
+            publish();
+        }
+
+        private void publish() {
+            var next = free.poll();
+            if (next == null && batches < MAX_PENDING_BATCHES) {
+                next = new Batch();
+                batches++;
+            }
+            if (next == null) {
+                // Поток записи отстал: ответ целиком не попадёт в журнал, как и следующий за ним,
+                // пока не освободится буфер - чтобы в журнале не было ответов без начала
+                dropped.increment();
+                current.buffer.clear();
+                dropping = true;
+                return;
+            }
+            pending.add(current);
+            current = next;
+            if (dropping) {
+                current.reserve(RECORD_HEADER_SIZE).put(GAP).putLong(0).putInt(0);
+                dropping = false;
+            }
+        }
+
+        private void writeLoop() {
+            while (true) {
+                boolean stopping = closed;
+                boolean wrote = false;
+                Batch batch;
+                while ((batch = pending.poll()) != null) {
+                    try {
+                        // После сбоя первой в журнал идёт отметка о пропуске, чтобы воспроизведение знало о потере
+                        if (writeFailed) {
+                            write(ByteBuffer.allocate(RECORD_HEADER_SIZE).put(GAP).putLong(0).putInt(0).flip());
+                            writeFailed = false;
+                        }
+                        write(batch.buffer.flip());
+                    } catch (IOException | RuntimeException e) {
+                        // Сбой записи (в том числе открытия следующего сегмента) не должен убивать поток:
+                        // пакет записей теряется и учитывается, следующий пакет попробует снова
+                        failed(e);
+                    } finally {
+                        batch.buffer.clear();
+                        free.add(batch);
+                    }
+                    wrote = true;
+                }
+                // Групповая фиксация: один сброс на всё, что накопилось за интервал
+                if (wrote) {
+                    try {
+                        segment.force();
+                    } catch (RuntimeException e) {
+                        // Записи уже в отображённом сегменте, система сбросит их сама; потери нет
+                        report(e);
+                    }
+                }
+                if (stopping) {
+                    return;
+                }
+                LockSupport.parkNanos(COMMIT_INTERVAL_NANOS);
+            }
+        }
+
+        private void failed(Exception e) {
+            dropped.increment();
+            writeFailed = true;
+            report(e);
+        }
+
+        private void report(Exception e) {
+            if (!reported) {
+                reported = true;
+                System.err.println("journal write failed: " + e);
+            }
+        }
+
+        /**
+         * Перенос записей в сегменты; запись не разрывается между сегментами
+         */
+        private void write(ByteBuffer records) throws IOException {
+            while (records.hasRemaining()) {
+                int size = RECORD_HEADER_SIZE + records.getInt(records.position() + 9);
+                // Последний байт сегмента остаётся нулём - признак конца записей
+                if (segment.remaining() < size + 1) {
+                    segment.force();
+                    openSegment(size);
+                }
+                segment.put(segment.position(), records, records.position(), size);
+                segment.position(segment.position() + size);
+                records.position(records.position() + size);
+            }
+        }
+
+        private void openSegment(int recordSize) throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+            segmentIndex++;
+            var path = directory.resolve(String.format("journal-%06d.seg", segmentIndex));
+            channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long size = Math.max(segmentSize, SEGMENT_HEADER_SIZE + recordSize + 1L);
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            segment.putInt(MAGIC).putInt(VERSION).putInt(segmentIndex).putInt(0);
+            segmentFiles.add(path);
+            deleteOldSegments();
+        }
+
+        // Сегмент, который не удалось удалить, остаётся первым и удаляется при следующей смене сегмента
+        private void deleteOldSegments() {
+            while (maxSegments > 0 && segmentFiles.size() > maxSegments) {
+                try {
+                    Files.deleteIfExists(segmentFiles.peekFirst());
+                } catch (IOException e) {
+                    return;
+                }
+                segmentFiles.removeFirst();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            publish();
+            closed = true;
+            LockSupport.unpark(writer);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            channel.close();
+        }
+    }
+
+    /**
+     * ============================
+     * Кодирование & декодирование
+     * ============================
+     */
+
+    /**
+     * Декодирование пакета из байтов
+     *
+     * @param buffer буфер с данными
+     */
+    private void decodePacketFromBytes(ByteBuffer buffer) {
+        int length = buffer.get() & 0xFF;
+        int start = buffer.position();
+        int end = start + length;
+        var crc8 = buffer.get(end);
+        if (journal != null) {
+            journal.inbound(buffer, start - 1, length + 2, currentTimestamp);
+        }
+
+        // Тело пакета разбирается прямо в буфере ответа, ограниченном окном [start, end)
+        if (crc8 == Crc8.compute(buffer, start, length)) {
+            int limit = buffer.limit();
+            buffer.limit(end);
+            decodePayloadFromBytes(buffer);
+            buffer.limit(limit);
+        } else {
+            metrics.crcFailures.increment();
+        }
+        buffer.position(end + 1);
+    }
+
+    /**
+     * Декодирование устройства из байтов
+     *
+     * @param payload тело пакета
+     * @return устройство
+     */
+    private Device decodeDeviceFromBytes(Payload payload) {
+        // Снимок мог записать устройство с недопустимым адресом; в реестр его не пустить
+        if (!DeviceRegistry.isValid(payload.src)) {
+            return null;
+        }
+        var name = ((Payload.CmdBodyDevice) payload.cmd_body).dev_name;
+        var buffer = ((Payload.CmdBodyDevice) payload.cmd_body).dev_props;
+        switch (payload.dev_type) {
+            case 0x02 -> {
+                byte sensors = buffer.get();
+                return new EnvSensor(
+                        payload.src,
+                        ((Payload.CmdBodyDevice) payload.cmd_body).dev_name,
+                        sensors,
+                        buffer
+                );
+            }
+            case 0x03 -> {
+                var switchDevice = new Switch();
+                switchDevice.address = payload.src;
+                switchDevice.name = name;
+                // Цели разрешаются в ссылки при регистрации переключателя в реестре
+                var arrayLength = buffer.get() & 0xFF;
+                switchDevice.targets = new TargetSlot[arrayLength];
+                for (int i = 0; i < arrayLength; i++) {
+                    switchDevice.targets[i] = new TargetSlot(decodeStringFromBytes(buffer));
+                }
+                return switchDevice;
+            }
+            case 0x04 -> {
+                var lamp = new Lamp();
+                lamp.address = payload.src;
+                lamp.name = name;
+                return lamp;
+            }
+            case 0x05 -> {
+                var socket = new Socket();
+                socket.address = payload.src;
+                socket.name = name;
+                return socket;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Декодирование тела пакета из байтов
+     *
+     * @param buffer буфер, ограниченный телом пакета
+     */
+    private void decodePayloadFromBytes(ByteBuffer buffer) {
+        // Входящий пакет не переживает своего разбора, поэтому объект переиспользуется
+        var payload = inboundPayload
+                .setSrc((short) readULEB128(buffer))
+                .setDst((short) readULEB128(buffer))
+                .setSerial(readULEB128(buffer))
+                .setDevType(buffer.get())
+                .setCmd(buffer.get())
+                .setCmdBody(null);
+
+        if (payload.dst != hubAddress && payload.dst != BROADCASTING_ADDRESS) {
+            return;
+        }
+        // Адрес отправителя вне 14-битного диапазона протокола: такому устройству нельзя ни ответить,
+        // ни занести его в реестр
+        if (!DeviceRegistry.isValid(payload.src)) {
+            return;
+        }
+        metrics.packetReceived(payload.cmd);
+
+        switch (payload.cmd) {
+            case 0x01 -> { // WHOISHERE
+                payload.cmd_body = new Payload.CmdBodyDevice();
+                ((Payload.CmdBodyDevice) payload.cmd_body).dev_name = decodeStringFromBytes(buffer);
+                ((Payload.CmdBodyDevice) payload.cmd_body).dev_props = buffer.slice();
+                processWhoIsHere(payload);
+            }
+            case 0x02 -> { // IAMHERE
+                payload.cmd_body = new Payload.CmdBodyDevice();
+                ((Payload.CmdBodyDevice) payload.cmd_body).dev_name = decodeStringFromBytes(buffer);
+                ((Payload.CmdBodyDevice) payload.cmd_body).dev_props = buffer.slice();
+                processIAmHere(payload);
+            }
+            case 0x04 -> // STATUS
+                    processStatus(payload, buffer);
+            case 0x06 -> { // TICK
+                inboundTimer.timestamp = readULEB128(buffer);
+                payload.cmd_body = inboundTimer;
+                processTICK(payload);
+            }
+        }
+    }
+
+    /**
+     * Кодирование пакетов для передачи
+     * <p>
+     * Пакеты пишутся прямо в буфер: сначала место под длину, затем тело, после чего
+     * длина проставляется на место, а контрольная сумма считается по уже записанному телу
+     * </p>
+     *
+     * @param payloads тела пакетов
+     * @param out      буфер для кодирования
+     * @return пакеты в base64
      */
-    private void sentSetStatus(Device device, Payload.CmdBody status) {
-        var payload = Payload.create()
-                .setSrc(hubAddress)
-                .setDst(device.address)
-                .setSerial(serialCounter)
-                .setDevType(device.getType().getValue())
-                .setCmd(COMMANDS_ENUM.SETSTATUS.getValue())
-                .setCmdBody(status);
-        addRequestToQueue(payload);
+    ByteBuffer encodePacketsToTransfer(Collection<Payload> payloads, EncodeBuffer out) {
+        out.clear();
+        for (var payload : payloads) {
+            var buffer = out.reserve(MAX_PACKET_SIZE);
+            int start = buffer.position();
+            buffer.put((byte) 0);
+            encodePayloadToBytes(buffer, payload);
+
+            int length = buffer.position() - start - 1;
+            if (length > MAX_PAYLOAD_SIZE) {
+                throw new IllegalStateException("Payload does not fit into a packet: " + length + " bytes");
+            }
+            buffer.put(start, (byte) length);
+            buffer.put(Crc8.compute(buffer, start + 1, length));
+        }
+        return out.toBase64();
     }
 
     /**
-     * Управление устройством
+     * Кодирование тела пакета в байты
      *
-     * @param name   имя устройства
-     * @param status статус
+     * @param buffer  буфер
+     * @param payload тело пакета
      */
-    private void manageDevice(String name, Boolean status) {
-        var device = getDeviceByName(name);
-        if (device == null) {
-            return;
+    private void encodePayloadToBytes(ByteBuffer buffer, Payload payload) {
+        writeULEB128(buffer, payload.src);
+        writeULEB128(buffer, payload.dst);
+        writeULEB128(buffer, payload.serial);
+
+        buffer.put(payload.dev_type);
+        buffer.put(payload.cmd);
+
+        encodeCmdBody(buffer, payload.cmd, payload.cmd_body);
+    }
+
+    /**
+     * Кодирование тела команды в байты
+     *
+     * @param buffer  буфер
+     * @param cmd     команда
+     * @param cmdBody тело команды
+     */
+    private void encodeCmdBody(ByteBuffer buffer, byte cmd, Payload.CmdBody cmdBody) {
+        switch (cmd) {
+            case 0x01, 0x02 -> // WHOISHERE
+                    encodeStringToBytes(buffer, "SmartHub");
+            case 0x05 -> { // SETSTATUS
+                var cmdBodyStatus = (Payload.CmdBodyStatus) cmdBody;
+                buffer.put((byte) (cmdBodyStatus.status ? 1 : 0));
+            }
         }
-        // Проверяем тип устройства
-        if (device.getType() != DEVICE_TYPES_ENUM.Lamp && device.getType() != DEVICE_TYPES_ENUM.Socket) {
-            return;
+    }
+
+    /**
+     * Запись числа в формате ULEB128
+     * <p>
+     * Значение трактуется как беззнаковое 64-битное число
+     * </p>
+     *
+     * @param buffer буфер
+     * @param value  число
+     */
+    static void writeULEB128(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
         }
+        buffer.put((byte) value);
+    }
 
-        if (device instanceof Lamp) {
-            if (((Lamp) device).status == status) {
-                return;
+    /**
+     * Чтение числа в формате ULEB128
+     * <p>
+     * Первые 9 байт (63 бита) читаются без проверок, десятый байт может добавить только старший бит.
+     * Всё, что не помещается в беззнаковые 64 бита, считается ошибкой.
+     * </p>
+     *
+     * @param buffer буфер
+     * @return число (беззнаковое 64-битное)
+     */
+    static long readULEB128(ByteBuffer buffer) {
+        long result = 0;
+        for (int shift = 0; shift < 63; shift += 7) {
+            var b = buffer.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
             }
-        } else if (device instanceof Socket) {
-            if (((Socket) device).status == status) {
-                return;
+        }
+        return readULEB128Tail(buffer, result);
+    }
+
+    /**
+     * Медленный путь чтения ULEB128 для значений шире 63 бит
+     *
+     * @param buffer буфер
+     * @param result уже прочитанные младшие 63 бита
+     * @return число (беззнаковое 64-битное)
+     */
+    private static long readULEB128Tail(ByteBuffer buffer, long result) {
+        var b = buffer.get();
+        if ((b & 0x7E) != 0) {
+            throw new ArithmeticException("ULEB128 value overflows 64 bits");
+        }
+        result |= (long) (b & 0x01) << 63;
+        // Допускаем избыточное кодирование нулевыми байтами-продолжениями
+        while ((b & 0x80) != 0) {
+            b = buffer.get();
+            if ((b & 0x7F) != 0) {
+                throw new ArithmeticException("ULEB128 value overflows 64 bits");
             }
         }
+        return result;
+    }
 
-        var commandBody = new Payload.CmdBodyStatus();
-        commandBody.status = status;
-        sentSetStatus(device, commandBody);
+    /**
+     * Кодирование строки в байты
+     * <p>
+     * Длина - число байт UTF-8, а не символов. Строка длиннее 255 байт обрезается по границе символа:
+     * такая получается, только если в имени из сети были некорректные байты UTF-8, каждый из которых
+     * при разборе стал трёхбайтовым символом замены.
+     * </p>
+     *
+     * @param buffer буфер
+     * @param value  строка
+     */
+    private static void encodeStringToBytes(ByteBuffer buffer, String value) {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        int length = bytes.length;
+        if (length > 0xFF) {
+            length = 0xFF;
+            // Не разрываем многобайтовый символ: отступаем с байтов продолжения 10xxxxxx
+            while ((bytes[length] & 0xC0) == 0x80) {
+                length--;
+            }
+        }
+        buffer.put((byte) length);
+        buffer.put(bytes, 0, length);
     }
 
     /**
-     * Обработка пакета WHOISHERE
+     * Декодирование строки из байтов
      *
-     * @param payload тело пакета
+     * @param buffer буфер
+     * @return строка
      */
-    private void processWhoIsHere(Payload payload) {
-        // Проверяем, было ли устройство уже добавлено в список (По имени)
-        var device = getDeviceByName(((Payload.CmdBodyDevice) payload.cmd_body).dev_name);
-        if (device != null) {
-            // Удаляем устройство из списка
-            deleteDeviceByName(device.name);
+    private static String decodeStringFromBytes(ByteBuffer buffer) {
+        var length = buffer.get() & 0xFF;
+        if (buffer.hasArray()) {
+            // Строка собирается прямо из массива буфера, без промежуточной копии
+            int offset = buffer.arrayOffset() + buffer.position();
+            buffer.position(buffer.position() + length);
+            return new String(buffer.array(), offset, length, StandardCharsets.UTF_8);
         }
-        // Добавляем устройство в список
-        var newDevice = decodeDeviceFromBytes(payload);
-        if (newDevice != null) {
-            devices.put(newDevice.address, newDevice);
-            sentGetStatus(newDevice);
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * ============================
+     * Транспорт
+     * ============================
+     */
+
+    /**
+     * Приёмник тела ответа сервера
+     */
+    interface BodyConsumer {
+        /**
+         * Очередной кусок тела ответа
+         * <p>
+         * Буфер принадлежит транспорту и действителен только до возврата из метода
+         * </p>
+         *
+         * @param chunk данные от position до limit
+         */
+        void accept(ByteBuffer chunk);
+    }
+
+    /**
+     * Транспорт до сервера: один вызов - один POST-запрос и ответ на него
+     */
+    interface HubTransport extends Closeable {
+        /**
+         * Отправить запрос и прочитать ответ
+         * <p>
+         * Тело ответа передаётся в body только при коде 200, в остальных случаях оно пропускается
+         * </p>
+         *
+         * @param request тело запроса от position до limit
+         * @param body    приёмник тела ответа
+         * @return HTTP-код ответа
+         * @throws IOException при ошибке соединения
+         */
+        int exchange(ByteBuffer request, BodyConsumer body) throws IOException;
+    }
+
+    /**
+     * Растущий буфер для кодирования исходящих пакетов
+     * <p>
+     * Пакеты и их base64-представление пишутся в массивы, которые только растут,
+     * поэтому в установившемся режиме кодирование ничего не выделяет
+     * </p>
+     */
+    static class EncodeBuffer {
+        private ByteBuffer packets = ByteBuffer.allocate(2048);
+        private byte[] base64 = new byte[Base64Url.encodedLength(2048)];
+        private ByteBuffer base64View = ByteBuffer.wrap(base64);
+
+        void clear() {
+            packets.clear();
+        }
+
+        /**
+         * Буфер, в котором гарантированно есть место под size байт
+         *
+         * @param size нужное место
+         * @return буфер пакетов
+         */
+        ByteBuffer reserve(int size) {
+            if (packets.remaining() < size) {
+                var bigger = ByteBuffer.allocate(Math.max(packets.capacity() * 2, packets.position() + size));
+                packets.flip();
+                bigger.put(packets);
+                packets = bigger;
+            }
+            return packets;
+        }
+
+        /**
+         * Закодированные пакеты в base64url без выравнивания
+         *
+         * @return буфер, действительный до следующего clear
+         */
+        ByteBuffer toBase64() {
+            int length = Base64Url.encodedLength(packets.position());
+            if (length > base64.length) {
+                base64 = new byte[Math.max(base64.length * 2, length)];
+                base64View = ByteBuffer.wrap(base64);
+            }
+            Base64Url.encode(packets.array(), 0, packets.position(), base64);
+            base64View.clear().limit(length);
+            return base64View;
         }
     }
 
     /**
-     * Обработка пакета IAMHERE
-     *
-     * @param payload тело пакета
+     * Base64url без выравнивания, работающий с готовыми массивами
      */
-    private void processIAmHere(Payload payload) {
-        // Добавляем устройство в список
-        var device = decodeDeviceFromBytes(payload);
+    static final class Base64Url {
+        private static final byte[] ALPHABET =
+                "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes(StandardCharsets.US_ASCII);
+        // Символ -> 6 бит; SKIP - пробельный символ, INVALID - недопустимый
+        static final byte SKIP = -2;
+        static final byte INVALID = -1;
+        static final byte[] DECODE = new byte[256];
 
-        if (device == null) {
-            return;
+        static {
+            Arrays.fill(DECODE, INVALID);
+            for (int i = 0; i < ALPHABET.length; i++) {
+                DECODE[ALPHABET[i]] = (byte) i;
+            }
+            DECODE['\r'] = SKIP;
+            DECODE['\n'] = SKIP;
+            DECODE[' '] = SKIP;
+            DECODE['\t'] = SKIP;
         }
-        // Проверяем, успело ли устройство ответить за 300мс
-        if (getInterval(whoIsHereTimestamp, currentTimestamp) > 300) {
-            return;
+
+        private Base64Url() {
         }
 
-        devices.put(device.address, device);
+        static int encodedLength(int length) {
+            return length / 3 * 4 + (length % 3 == 0 ? 0 : length % 3 + 1);
+        }
 
-        // Отправляем запрос на получение статуса устройства
-        sentGetStatus(device);
+        /**
+         * Кодирование участка массива
+         *
+         * @param src    исходные байты
+         * @param offset начало участка
+         * @param length длина участка
+         * @param dst    массив для результата, не меньше encodedLength(length)
+         * @return длина результата
+         */
+        static int encode(byte[] src, int offset, int length, byte[] dst) {
+            int end = offset + length;
+            int i = offset;
+            int j = 0;
+            for (int last = end - 3; i <= last; i += 3) {
+                int bits = (src[i] & 0xFF) << 16 | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF);
+                dst[j++] = ALPHABET[bits >>> 18];
+                dst[j++] = ALPHABET[(bits >>> 12) & 0x3F];
+                dst[j++] = ALPHABET[(bits >>> 6) & 0x3F];
+                dst[j++] = ALPHABET[bits & 0x3F];
+            }
+            int rest = end - i;
+            if (rest > 0) {
+                int bits = (src[i] & 0xFF) << 16 | (rest == 2 ? (src[i + 1] & 0xFF) << 8 : 0);
+                dst[j++] = ALPHABET[bits >>> 18];
+                dst[j++] = ALPHABET[(bits >>> 12) & 0x3F];
+                if (rest == 2) {
+                    dst[j++] = ALPHABET[(bits >>> 6) & 0x3F];
+                }
+            }
+            return j;
+        }
     }
 
     /**
-     * Обработка пакета STATUS
-     *
-     * @param payload тело пакета
-     * @param buffer  буфер с данными
+     * Потоковый разбор тела ответа
+     * <p>
+     * Принимает base64url кусками в любом разбиении, декодирует их в небольшое окно и
+     * отдаёт каждый пакет на обработку, как только он пришёл целиком. Окно вмещает два
+     * максимальных пакета, поэтому память не зависит от размера ответа.
+     * </p>
      */
-    private void processStatus(Payload payload, ByteBuffer buffer) {
-        // Есть ли ожидание ответа от устройства по адресу
-        var time = waitingResponses.get(payload.src);
-        // Если есть
-        if (time != null) {
-            // Проверяем, успело ли устройство ответить за 300мс
-            if (getInterval(time, currentTimestamp) > 300) {
-                // Удаляем устройство из списка, если не успело ответить
-                deleteDeviceByAddress(payload.src);
-                waitingResponses.remove(payload.src);
-                return;
-            } else {
-                // Удаляем устройство из списка ожидания ответа
-                waitingResponses.remove(payload.src);
+    class PacketStreamDecoder implements BodyConsumer {
+        private final byte[] window = new byte[2 * MAX_PACKET_SIZE];
+        private final ByteBuffer windowBuffer = ByteBuffer.wrap(window);
+        // Начало необработанных данных и конец записанных данных в окне
+        private int start;
+        private int filled;
+        // Накопленные, но ещё не декодированные биты base64
+        private int bits;
+        private int sextets;
+        private boolean padded;
+        // Время декодирования и обработки пакетов текущего ответа (без ожидания сети)
+        long decodeNanos;
+
+        void reset() {
+            decodeNanos = 0;
+            start = 0;
+            filled = 0;
+            bits = 0;
+            sextets = 0;
+            padded = false;
+        }
+
+        @Override
+        public void accept(ByteBuffer chunk) {
+            long started = System.nanoTime();
+            int position = chunk.position();
+            int limit = chunk.limit();
+            for (int i = position; i < limit; i++) {
+                var c = chunk.get(i);
+                if (c == '=') {
+                    // Выравнивание допустимо только в самом конце
+                    padded = true;
+                    continue;
+                }
+                var value = Base64Url.DECODE[c & 0xFF];
+                if (value < 0) {
+                    if (value == Base64Url.SKIP) {
+                        continue;
+                    }
+                    throw new IllegalArgumentException("Illegal base64url character: " + (c & 0xFF));
+                }
+                if (padded) {
+                    throw new IllegalArgumentException("Data after base64url padding");
+                }
+                bits = bits << 6 | value;
+                if (++sextets == 4) {
+                    put((byte) (bits >>> 16));
+                    put((byte) (bits >>> 8));
+                    put((byte) bits);
+                    bits = 0;
+                    sextets = 0;
+                }
             }
+            chunk.position(limit);
+            drain();
+            decodeNanos += System.nanoTime() - started;
         }
 
-        // Обновляем данные устройства если оно успело ответить или самостоятельно отправило данные
-        var device = devices.get(payload.src);
-        if (device != null) {
-            device.setData(buffer);
+        /**
+         * Конец ответа: декодируем хвост base64 и проверяем, что не осталось неполного пакета
+         */
+        void finish() {
+            long started = System.nanoTime();
+            switch (sextets) {
+                case 0 -> {
+                }
+                case 2 -> put((byte) (bits >>> 4));
+                case 3 -> {
+                    put((byte) (bits >>> 10));
+                    put((byte) (bits >>> 2));
+                }
+                default -> throw new IllegalArgumentException("Truncated base64url input");
+            }
+            sextets = 0;
+            drain();
+            decodeNanos += System.nanoTime() - started;
+            if (start != filled) {
+                throw new IllegalStateException("Response ends in the middle of a packet");
+            }
+        }
+
+        private void put(byte b) {
+            if (filled == window.length) {
+                drain();
+                // В окне остался только неполный пакет - сдвигаем его в начало
+                System.arraycopy(window, start, window, 0, filled - start);
+                filled -= start;
+                start = 0;
+            }
+            window[filled++] = b;
+        }
+
+        /**
+         * Обработка всех пакетов, полностью лежащих в окне
+         */
+        private void drain() {
+            while (filled - start >= 2) {
+                int end = start + (window[start] & 0xFF) + 2;
+                if (end > filled) {
+                    return;
+                }
+                windowBuffer.limit(end).position(start);
+                decodePacketFromBytes(windowBuffer);
+                start = end;
+            }
+            if (start == filled) {
+                start = 0;
+                filled = 0;
+            }
         }
     }
 
     /**
-     * Обработка пакета TICK
-     *
-     * @param payload тело пакета
+     * Растущий буфер для тела ответа
      */
-    private void processTICK(Payload payload) {
-        currentTimestamp = ((Payload.CmdBodyTimer) payload.cmd_body).timestamp;
-        if (whoIsHereTimestamp.intValue() == -1) {
-            whoIsHereTimestamp = currentTimestamp;
+    static class ResponseBuffer implements BodyConsumer {
+        private byte[] bytes = new byte[4096];
+        private int length;
+        // Время последнего обмена, заполняется потоком, выполнившим обмен
+        long roundTripNanos;
+
+        @Override
+        public void accept(ByteBuffer chunk) {
+            int size = chunk.remaining();
+            if (length + size > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + size));
+            }
+            chunk.get(bytes, length, size);
+            length += size;
+        }
+
+        void clear() {
+            length = 0;
+        }
+
+        ByteBuffer view() {
+            return ByteBuffer.wrap(bytes, 0, length);
         }
     }
 
     /**
-     * Обработка обновления устройств
+     * Метрики хаба: счётчики пакетов и устройств, гистограммы времени обменов и фаз разбора ответа
+     * <p>
+     * Пишутся из цикла опроса, читаются при экспорте из любого потока. Счётчики - LongAdder,
+     * поэтому запись не требует блокировок и не мешает чтению.
+     * </p>
      */
-    private void processUpdateDevices() {
-        for (var device : devices.values()) {
-            if (device.updated) {
-                switch (device.getType()) {
-                    case Switch -> {
-                        var switchDevice = (Switch) device;
-                        switchDevice.devicesNames.forEach((name) -> manageDevice(name, switchDevice.status));
-                    }
-                    case EnvSensor -> {
-                        var envSensor = (EnvSensor) device;
-                        // Проверяем все триггеры
-                        envSensor.triggers.forEach((trigger) -> {
-                            if (trigger.check()) {
-                                manageDevice(trigger.name, trigger.enabled);
-                            }
-                        });
+    static class Metrics {
+        // Фазы обработки ответа
+        static final int PHASE_DECODE = 0;
+        static final int PHASE_UPDATE = 1;
+        static final int PHASE_EXPIRE = 2;
+        private static final String[] PHASE_NAMES = {"decode", "update", "expire"};
+        private static final String[] SENSOR_NAMES = {"temperature", "humidity", "illumination", "air_pollution"};
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+        // Принятые пакеты, адресованные хабу, по командам; нулевой элемент - неизвестные команды
+        final LongAdder[] packetsReceived = new LongAdder[COMMANDS_ENUM.values().length + 1];
+        final LongAdder crcFailures = new LongAdder();
+        final LongAdder devicesAdded = new LongAdder();
+        final LongAdder devicesRemoved = new LongAdder();
+        final LongAdder setStatusSent = new LongAdder();
+        final LongAdder setStatusCoalesced = new LongAdder();
+        final LongAdder triggersFired = new LongAdder();
+        final LongAdder journalDropped = new LongAdder();
+        final LatencyHistogram roundTrip = new LatencyHistogram();
+        final LatencyHistogram[] phases = new LatencyHistogram[PHASE_NAMES.length];
+        // Колоночное хранилище показаний для сводки по всем датчикам; null, если выключено
+        SensorReadings readings;
+        // История показаний; null, если выключена
+        SensorHistory history;
+
+        Metrics() {
+            for (int i = 0; i < packetsReceived.length; i++) {
+                packetsReceived[i] = new LongAdder();
+            }
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new LatencyHistogram();
+            }
+        }
+
+        /**
+         * Учёт принятого пакета, прошедшего фильтр по адресам
+         *
+         * @param cmd команда пакета
+         */
+        void packetReceived(byte cmd) {
+            packetsReceived[cmd > 0 && cmd < packetsReceived.length ? cmd : 0].increment();
+        }
+
+        /**
+         * Снимок метрик в текстовом формате Prometheus
+         *
+         * @return текст снимка
+         */
+        String toPrometheus() {
+            var out = new StringBuilder(2048);
+            out.append("# TYPE smarthub_packets_received_total counter\n");
+            var commands = COMMANDS_ENUM.values();
+            for (int i = 0; i < packetsReceived.length; i++) {
+                var command = i == 0 ? "unknown" : commands[i - 1].name();
+                out.append("smarthub_packets_received_total{command=\"").append(command).append("\"} ")
+                        .append(packetsReceived[i].sum()).append('\n');
+            }
+            counter(out, "smarthub_crc_failures_total", crcFailures);
+            counter(out, "smarthub_devices_added_total", devicesAdded);
+            counter(out, "smarthub_devices_removed_total", devicesRemoved);
+            counter(out, "smarthub_setstatus_sent_total", setStatusSent);
+            counter(out, "smarthub_setstatus_coalesced_total", setStatusCoalesced);
+            counter(out, "smarthub_triggers_fired_total", triggersFired);
+            counter(out, "smarthub_journal_dropped_total", journalDropped);
+
+            out.append("# TYPE smarthub_round_trip_seconds summary\n");
+            summary(out, "smarthub_round_trip_seconds", "", roundTrip);
+            out.append("# TYPE smarthub_response_phase_seconds summary\n");
+            for (int i = 0; i < phases.length; i++) {
+                summary(out, "smarthub_response_phase_seconds", "phase=\"" + PHASE_NAMES[i] + "\"", phases[i]);
+            }
+            if (readings != null) {
+                sensorGauges(out);
+            }
+            if (history != null) {
+                out.append("# TYPE smarthub_history_series gauge\n");
+                out.append("smarthub_history_series{state=\"used\"} ").append(history.used()).append('\n');
+                out.append("smarthub_history_series{state=\"capacity\"} ").append(history.capacity()).append('\n');
+            }
+            return out.toString();
+        }
+
+        private void sensorGauges(StringBuilder out) {
+            for (var gauge : new String[]{"smarthub_sensors_reporting", "smarthub_sensor_reading_min",
+                    "smarthub_sensor_reading_max", "smarthub_sensor_reading_mean"}) {
+                out.append("# TYPE ").append(gauge).append(" gauge\n");
+                for (int type = 0; type < SENSOR_TYPES; type++) {
+                    int count = readings.count(type);
+                    if (count == 0 && !gauge.equals("smarthub_sensors_reporting")) {
+                        continue;
                     }
+                    var value = switch (gauge) {
+                        case "smarthub_sensors_reporting" -> String.valueOf(count);
+                        case "smarthub_sensor_reading_min" -> String.valueOf(readings.min(type));
+                        case "smarthub_sensor_reading_max" -> String.valueOf(readings.max(type));
+                        default -> String.valueOf((double) readings.sum(type) / count);
+                    };
+                    out.append(gauge).append("{sensor=\"").append(SENSOR_NAMES[type]).append("\"} ")
+                            .append(value).append('\n');
                 }
-                device.updated = false;
             }
         }
+
+        private static void counter(StringBuilder out, String name, LongAdder value) {
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(name).append(' ').append(value.sum()).append('\n');
+        }
+
+        private static void summary(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+            var prefix = labels.isEmpty() ? "" : labels + ",";
+            for (var quantile : QUANTILES) {
+                out.append(name).append("{").append(prefix).append("quantile=\"").append(quantile).append("\"} ")
+                        .append(histogram.valueAt(quantile) / 1e9).append('\n');
+            }
+            var suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+            out.append(name).append("_sum").append(suffix).append(histogram.sum() / 1e9).append('\n');
+            out.append(name).append("_count").append(suffix).append(histogram.count()).append('\n');
+        }
     }
 
     /**
-     * Обработка ответа от сервера
-     *
-     * @param response ответ от сервера
+     * Гистограмма длительностей в наносекундах с лог-линейными корзинами, как в HdrHistogram
+     * <p>
+     * Каждая степень двойки делится на 16 корзин, поэтому относительная погрешность не больше 1/16.
+     * Запись - одно атомарное увеличение счётчика корзины, без выделения памяти.
+     * </p>
+     */
+    static class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            counts.incrementAndGet(bucket(nanos));
+            sum.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        long sum() {
+            return sum.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        /**
+         * Значение квантиля: верхняя граница корзины, в которую он попал
+         *
+         * @param quantile квантиль от 0 до 1
+         * @return длительность в наносекундах
+         */
+        long valueAt(double quantile) {
+            var snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max());
+                }
+            }
+            return max();
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+            return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return lower + (1L << shift) - 1;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count() +
+                    ", p50Micros=" + valueAt(0.5) / 1000 +
+                    ", p99Micros=" + valueAt(0.99) / 1000 +
+                    ", maxMicros=" + max() / 1000;
+        }
+    }
+
+    /**
+     * Сервер экспорта метрик вместе с потоком, который его обслуживает
      */
-    private void processResponse(byte[] response) {
-        var decoder = Base64.getUrlDecoder();
-        ByteBuffer buffer = ByteBuffer.wrap(decoder.decode(response));
+    static final class MetricsServer {
+        private final HttpServer server;
+        private final ExecutorService executor;
 
-        while (buffer.hasRemaining()) {
-            decodePacketFromBytes(buffer);
+        MetricsServer(HttpServer server, ExecutorService executor) {
+            this.server = server;
+            this.executor = executor;
+        }
+
+        /**
+         * Остановить сервер и завершить его поток
+         */
+        void stop() {
+            server.stop(0);
+            executor.shutdown();
         }
-        // Обновляем устройства
-        processUpdateDevices();
-        // Проверяем выключенные устройства
-        processDisabledDevices();
     }
 
     /**
-     * Проверка выключенных устройств
+     * Экспорт метрик по HTTP на локальном порту: GET /metrics
+     *
+     * @param metrics метрики хаба
+     * @param port    порт
+     * @return запущенный сервер
+     * @throws IOException если порт занят
      */
-    private void processDisabledDevices(){
-        // Проверяем все запросы
-        for (var request : waitingResponses.entrySet()) {
-            // Если запрос не был обработан за 300мс
-            if (getInterval(request.getValue(), currentTimestamp) > 300) {
-                // Удаляем устройство из списка, если не успело ответить
-                deleteDeviceByAddress(request.getKey());
-                waitingResponses.remove(request.getKey());
+    static MetricsServer startMetricsServer(Metrics metrics, int port) throws IOException {
+        var server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            var body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (var out = exchange.getResponseBody()) {
+                out.write(body);
             }
-        }
+        });
+        // Отдельный поток сервера, чтобы экспорт не касался цикла опроса
+        var executor = Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "hub-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.start();
+        return new MetricsServer(server, executor);
     }
 
     /**
-     * ============================
-     * Кодирование & декодирование
-     * ============================
+     * Транспорт на java.net.http.HttpClient
+     * <p>
+     * Клиент держит пул постоянных HTTP/1.1 соединений, поэтому соединение не открывается на каждый запрос
+     * </p>
      */
+    static class HttpClientTransport implements HubTransport {
+        private static final int CHUNK_SIZE = 8 * 1024;
 
-    /**
-     * Декодирование пакета из байтов
-     *
-     * @param buffer буфер с данными
-     */
-    private void decodePacketFromBytes(ByteBuffer buffer) {
-        var packet = new Packet();
-        int length = buffer.get();
-        packet.length = (byte) length;
-        packet.payload = new byte[length];
-        buffer.get(packet.payload);
-        packet.crc8 = buffer.get();
+        private final HttpClient client;
+        private final URI uri;
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private final ByteBuffer chunkBuffer = ByteBuffer.wrap(chunk);
+
+        HttpClientTransport(HttpClient client, URI uri) {
+            this.client = client;
+            this.uri = uri;
+        }
+
+        HttpClientTransport(URI uri) {
+            this(HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build(), uri);
+        }
+
+        @Override
+        public int exchange(ByteBuffer request, BodyConsumer body) throws IOException {
+            HttpRequest.BodyPublisher publisher;
+            if (request.hasArray()) {
+                publisher = HttpRequest.BodyPublishers.ofByteArray(
+                        request.array(), request.arrayOffset() + request.position(), request.remaining());
+            } else {
+                byte[] bytes = new byte[request.remaining()];
+                request.duplicate().get(bytes);
+                publisher = HttpRequest.BodyPublishers.ofByteArray(bytes);
+            }
+            var httpRequest = HttpRequest.newBuilder(uri).POST(publisher).build();
+
+            HttpResponse<InputStream> response;
+            try {
+                response = client.send(httpRequest, HttpResponse.BodyHandlers.ofInputStream());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the server");
+            }
+
+            // Тело дочитывается до конца в любом случае, иначе соединение не вернётся в пул
+            try (var stream = response.body()) {
+                int read;
+                while ((read = stream.read(chunk)) != -1) {
+                    if (response.statusCode() == 200 && read > 0) {
+                        chunkBuffer.limit(read).position(0);
+                        body.accept(chunkBuffer);
+                    }
+                }
+            }
+            return response.statusCode();
+        }
 
-        if (packet.crc8 == calculateCRC(packet)) {
-            decodePayloadFromBytes(packet.payload);
+        @Override
+        public void close() {
         }
     }
 
     /**
-     * Декодирование устройства из байтов
-     *
-     * @param payload тело пакета
-     * @return устройство
+     * Транспорт на SocketChannel
+     * <p>
+     * Минимальный HTTP/1.1 клиент поверх одного постоянного соединения. Буферы запроса и ответа
+     * выделяются один раз и переиспользуются; тело ответа отдаётся кусками прямо из буфера чтения.
+     * Поддерживаются Content-Length, chunked и ответ до закрытия соединения. Только http.
+     * </p>
      */
-    private Device decodeDeviceFromBytes(Payload payload) {
-        var name = ((Payload.CmdBodyDevice) payload.cmd_body).dev_name;
-        var buffer = ByteBuffer.wrap(((Payload.CmdBodyDevice) payload.cmd_body).dev_props);
-        switch (payload.dev_type) {
-            case 0x02 -> {
-                byte sensors = buffer.get();
-                byte[] triggers = new byte[buffer.remaining()];
-                buffer.get(triggers);
-                return new EnvSensor(
-                        payload.src,
-                        ((Payload.CmdBodyDevice) payload.cmd_body).dev_name,
-                        sensors,
-                        triggers
-                );
+    static class NioTransport implements HubTransport {
+        private static final int BUFFER_SIZE = 16 * 1024;
+        private static final byte[] HEADERS_END = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+        // Состояния разбора chunked-тела
+        private static final int CHUNK_SIZE_LINE = 0;
+        private static final int CHUNK_EXTENSION = 1;
+        private static final int CHUNK_DATA = 2;
+        private static final int CHUNK_DATA_END = 3;
+        private static final int CHUNK_TRAILER = 4;
+        private static final int CHUNK_DONE = 5;
+
+        private final InetSocketAddress address;
+        private final byte[] requestHead;
+        private final ByteBuffer head = ByteBuffer.allocateDirect(512);
+        private final ByteBuffer[] out = new ByteBuffer[2];
+        private ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private SocketChannel channel;
+
+        // Заголовки текущего ответа
+        private int status;
+        private long contentLength;
+        private boolean chunked;
+        private boolean closeAfter;
+
+        NioTransport(URI uri) {
+            if (!"http".equalsIgnoreCase(uri.getScheme())) {
+                throw new IllegalArgumentException("NIO transport supports only http: " + uri);
             }
-            case 0x03 -> {
-                var switchDevice = new Switch();
-                switchDevice.address = payload.src;
-                switchDevice.name = name;
-                var arrayLength = buffer.get();
-                for (int i = 0; i < arrayLength; i++) {
-                    switchDevice.devicesNames.add(decodeStringFromBytes(buffer));
+            int port = uri.getPort() == -1 ? 80 : uri.getPort();
+            address = new InetSocketAddress(uri.getHost(), port);
+            var path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+            if (uri.getRawQuery() != null) {
+                path += "?" + uri.getRawQuery();
+            }
+            requestHead = ("POST " + path + " HTTP/1.1\r\n" +
+                    "Host: " + uri.getHost() + ":" + port + "\r\n" +
+                    "Connection: keep-alive\r\n" +
+                    "Content-Length: ").getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public int exchange(ByteBuffer request, BodyConsumer body) throws IOException {
+            boolean reused = channel != null;
+            int position = request.position();
+            try {
+                return exchangeOnce(request, body);
+            } catch (IOException e) {
+                closeChannel();
+                if (!reused || status != 0) {
+                    throw e;
                 }
-                return switchDevice;
+                // Сервер мог закрыть простаивающее соединение - повторяем один раз на новом
+                request.position(position);
+                return exchangeOnce(request, body);
             }
-            case 0x04 -> {
-                var lamp = new Lamp();
-                lamp.address = payload.src;
-                lamp.name = name;
-                return lamp;
+        }
+
+        private int exchangeOnce(ByteBuffer request, BodyConsumer body) throws IOException {
+            status = 0;
+            if (channel == null) {
+                channel = SocketChannel.open(address);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
             }
-            case 0x05 -> {
-                var socket = new Socket();
-                socket.address = payload.src;
-                socket.name = name;
-                return socket;
+
+            head.clear();
+            head.put(requestHead);
+            putDecimal(head, request.remaining());
+            head.put(HEADERS_END);
+            head.flip();
+            out[0] = head;
+            out[1] = request;
+            while (head.hasRemaining() || request.hasRemaining()) {
+                channel.write(out);
             }
-        }
-        return null;
-    }
 
-    /**
-     * Декодирование тела пакета из байтов
-     *
-     * @param payloadBytes тело пакета
-     */
-    private void decodePayloadFromBytes(byte[] payloadBytes) {
-        ByteBuffer buffer = ByteBuffer.wrap(payloadBytes);
-        var payload = Payload.create()
-                .setSrc(readULEB128(buffer).shortValue())
-                .setDst(readULEB128(buffer).shortValue())
-                .setSerial(readULEB128(buffer))
-                .setDevType(buffer.get())
-                .setCmd(buffer.get());
+            in.clear();
+            int bodyStart = readHeaders();
+            in.flip();
+            in.position(bodyStart);
 
-        if (payload.dst != hubAddress && payload.dst != BROADCASTING_ADDRESS) {
-            return;
+            // Тело пропускается, если это не 200
+            var consumer = status == 200 ? body : null;
+            if (status == 204 || status == 304 || status / 100 == 1) {
+                // Ответ без тела
+            } else if (chunked) {
+                readChunked(consumer);
+            } else if (contentLength >= 0) {
+                readFixed(consumer, contentLength);
+            } else {
+                readUntilClose(consumer);
+                closeAfter = true;
+            }
+
+            if (closeAfter) {
+                closeChannel();
+            }
+            return status;
         }
 
-        switch (payload.cmd) {
-            case 0x01 -> { // WHOISHERE
-                payload.cmd_body = new Payload.CmdBodyDevice();
-                ((Payload.CmdBodyDevice) payload.cmd_body).dev_name = decodeStringFromBytes(buffer);
-                byte[] dev_props = new byte[buffer.remaining()];
-                buffer.get(dev_props);
-                ((Payload.CmdBodyDevice) payload.cmd_body).dev_props = dev_props;
-                processWhoIsHere(payload);
+        /**
+         * Чтение заголовков ответа в буфер
+         *
+         * @return позиция начала тела в буфере
+         */
+        private int readHeaders() throws IOException {
+            int scanned = 0;
+            while (true) {
+                if (!in.hasRemaining()) {
+                    // Заголовки не влезли - расширяем буфер
+                    var bigger = ByteBuffer.allocateDirect(in.capacity() * 2);
+                    in.flip();
+                    bigger.put(in);
+                    in = bigger;
+                }
+                if (channel.read(in) == -1) {
+                    throw new EOFException("Connection closed before response headers");
+                }
+                for (int end = in.position() - HEADERS_END.length; scanned <= end; scanned++) {
+                    if (in.get(scanned) == '\r' && in.get(scanned + 1) == '\n'
+                            && in.get(scanned + 2) == '\r' && in.get(scanned + 3) == '\n') {
+                        parseHeaders(scanned + 2);
+                        return scanned + HEADERS_END.length;
+                    }
+                }
             }
-            case 0x02 -> { // IAMHERE
-                payload.cmd_body = new Payload.CmdBodyDevice();
-                ((Payload.CmdBodyDevice) payload.cmd_body).dev_name = decodeStringFromBytes(buffer);
-                byte[] dev_props = new byte[buffer.remaining()];
-                buffer.get(dev_props);
-                ((Payload.CmdBodyDevice) payload.cmd_body).dev_props = dev_props;
-                processIAmHere(payload);
+        }
+
+        /**
+         * Разбор строки статуса и нужных заголовков
+         *
+         * @param end конец заголовков в буфере
+         */
+        private void parseHeaders(int end) throws IOException {
+            // HTTP/1.1 200 OK
+            if (end < 12 || !startsWithIgnoreCase(0, "HTTP/1.")) {
+                throw new IOException("Malformed status line");
             }
-            case 0x04 -> // STATUS
-                    processStatus(payload, buffer);
-            case 0x06 -> { // TICK
-                Payload.CmdBodyTimer cmdBodyTimer = new Payload.CmdBodyTimer();
-                cmdBodyTimer.timestamp = readULEB128(buffer);
-                payload.cmd_body = cmdBodyTimer;
-                processTICK(payload);
+            status = (int) parseDecimal(9, 12);
+            contentLength = -1;
+            chunked = false;
+            closeAfter = in.get(7) == '0';
+
+            int line = 0;
+            while (in.get(line) != '\n') {
+                line++;
+            }
+            line++;
+            while (line < end) {
+                int lineEnd = line;
+                while (in.get(lineEnd) != '\r') {
+                    lineEnd++;
+                }
+                int colon = line;
+                while (colon < lineEnd && in.get(colon) != ':') {
+                    colon++;
+                }
+                int value = colon + 1;
+                while (value < lineEnd && in.get(value) == ' ') {
+                    value++;
+                }
+                if (headerIs(line, colon, "Content-Length")) {
+                    contentLength = parseDecimal(value, lineEnd);
+                } else if (headerIs(line, colon, "Transfer-Encoding")) {
+                    chunked = startsWithIgnoreCase(value, "chunked");
+                } else if (headerIs(line, colon, "Connection")) {
+                    closeAfter = startsWithIgnoreCase(value, "close");
+                }
+                line = lineEnd + 2;
             }
         }
-    }
 
-    /**
-     * Кодирование пакета в байты
-     *
-     * @param payloads тела пакетов
-     * @return байты пакетов
-     */
-    private byte[] encodePacketsToTransfer(List<Payload> payloads) {
-        var buffer = ByteBuffer.allocate(2048);
+        private void readFixed(BodyConsumer consumer, long length) throws IOException {
+            while (true) {
+                int take = (int) Math.min(in.remaining(), length);
+                deliver(consumer, take);
+                length -= take;
+                if (length == 0) {
+                    return;
+                }
+                fill();
+            }
+        }
 
-        payloads.forEach((p) -> {
-            var packet = new Packet();
-            packet.payload = encodePayloadToBytes(p);
-            packet.length = (byte) packet.payload.length;
-            packet.crc8 = calculateCRC(packet);
+        private void readUntilClose(BodyConsumer consumer) throws IOException {
+            while (true) {
+                deliver(consumer, in.remaining());
+                in.clear();
+                if (channel.read(in) == -1) {
+                    in.flip();
+                    return;
+                }
+                in.flip();
+            }
+        }
 
-            buffer.put(packet.length);
-            buffer.put(packet.payload);
-            buffer.put(packet.crc8);
-        });
+        private void readChunked(BodyConsumer consumer) throws IOException {
+            int state = CHUNK_SIZE_LINE;
+            long size = 0;
+            int lineLength = 0;
+            while (true) {
+                while (in.hasRemaining()) {
+                    if (state == CHUNK_DATA) {
+                        int take = (int) Math.min(in.remaining(), size);
+                        deliver(consumer, take);
+                        size -= take;
+                        if (size == 0) {
+                            state = CHUNK_DATA_END;
+                        }
+                        continue;
+                    }
+                    var b = in.get();
+                    switch (state) {
+                        case CHUNK_SIZE_LINE, CHUNK_EXTENSION -> {
+                            if (b == '\n') {
+                                state = size == 0 ? CHUNK_TRAILER : CHUNK_DATA;
+                                lineLength = 0;
+                            } else if (b == ';') {
+                                state = CHUNK_EXTENSION;
+                            } else if (state == CHUNK_SIZE_LINE && b != '\r' && b != ' ') {
+                                int digit = Character.digit(b, 16);
+                                if (digit < 0) {
+                                    throw new IOException("Malformed chunk size");
+                                }
+                                size = (size << 4) | digit;
+                            }
+                        }
+                        case CHUNK_DATA_END -> {
+                            if (b == '\n') {
+                                state = CHUNK_SIZE_LINE;
+                                size = 0;
+                            }
+                        }
+                        case CHUNK_TRAILER -> {
+                            if (b == '\n') {
+                                if (lineLength == 0) {
+                                    state = CHUNK_DONE;
+                                }
+                                lineLength = 0;
+                            } else if (b != '\r') {
+                                lineLength++;
+                            }
+                        }
+                    }
+                    if (state == CHUNK_DONE) {
+                        return;
+                    }
+                }
+                fill();
+            }
+        }
 
-        // Убираем лишние байты
-        buffer.flip();
-        byte[] result = new byte[buffer.remaining()];
-        buffer.get(result);
+        /**
+         * Отдать приёмнику следующие length байт буфера чтения
+         */
+        private void deliver(BodyConsumer consumer, int length) {
+            if (length == 0) {
+                return;
+            }
+            int limit = in.limit();
+            int end = in.position() + length;
+            if (consumer != null) {
+                in.limit(end);
+                consumer.accept(in);
+                in.limit(limit);
+            }
+            in.position(end);
+        }
 
-        var encoder = Base64.getUrlEncoder().withoutPadding();
-        return encoder.encodeToString(result).getBytes();
-    }
+        /**
+         * Дочитать следующую порцию ответа в пустой буфер
+         */
+        private void fill() throws IOException {
+            in.clear();
+            if (channel.read(in) == -1) {
+                throw new EOFException("Connection closed in the middle of the response body");
+            }
+            in.flip();
+        }
 
-    /**
-     * Кодирование тела пакета в байты
-     *
-     * @param payload тело пакета
-     * @return байты тела пакета
-     */
-    private byte[] encodePayloadToBytes(Payload payload) {
-        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        private boolean headerIs(int from, int to, String name) {
+            return to - from == name.length() && startsWithIgnoreCase(from, name);
+        }
 
-        writeULEB128(buffer, BigInteger.valueOf(payload.src));
-        writeULEB128(buffer, BigInteger.valueOf(payload.dst));
-        writeULEB128(buffer, payload.serial);
+        private boolean startsWithIgnoreCase(int from, String value) {
+            for (int i = 0; i < value.length(); i++) {
+                if (Character.toLowerCase(in.get(from + i)) != Character.toLowerCase(value.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
 
-        buffer.put(payload.dev_type);
-        buffer.put(payload.cmd);
+        private long parseDecimal(int from, int to) throws IOException {
+            long result = 0;
+            for (int i = from; i < to; i++) {
+                var b = in.get(i);
+                if (b < '0' || b > '9') {
+                    throw new IOException("Malformed number in response headers");
+                }
+                result = result * 10 + (b - '0');
+            }
+            return result;
+        }
 
-        encodeCmdBody(buffer, payload.cmd, payload.cmd_body);
+        private static void putDecimal(ByteBuffer buffer, int value) {
+            int divisor = 1;
+            while (divisor <= value / 10) {
+                divisor *= 10;
+            }
+            for (; divisor > 0; divisor /= 10) {
+                buffer.put((byte) ('0' + value / divisor % 10));
+            }
+        }
 
-        buffer.flip();
-        byte[] result = new byte[buffer.remaining()];
-        buffer.get(result);
+        private void closeChannel() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                channel = null;
+            }
+        }
 
-        return result;
+        @Override
+        public void close() {
+            closeChannel();
+        }
     }
 
     /**
-     * Кодирование тела команды в байты
+     * Создание транспорта по имени
      *
-     * @param buffer  буфер
-     * @param cmd     команда
-     * @param cmdBody тело команды
+     * @param kind http или nio
+     * @param url  URL сервера
+     * @return транспорт
      */
-    private void encodeCmdBody(ByteBuffer buffer, byte cmd, Payload.CmdBody cmdBody) {
-        switch (cmd) {
-            case 0x01, 0x02 -> // WHOISHERE
-                    encodeStringToBytes(buffer, "SmartHub");
-            case 0x05 -> { // SETSTATUS
-                var cmdBodyStatus = (Payload.CmdBodyStatus) cmdBody;
-                buffer.put((byte) (cmdBodyStatus.status ? 1 : 0));
-            }
-        }
+    static HubTransport createTransport(String kind, String url) {
+        var uri = URI.create(url);
+        return switch (kind) {
+            case "http" -> new HttpClientTransport(uri);
+            case "nio" -> new NioTransport(uri);
+            default -> throw new IllegalArgumentException("Unknown transport: " + kind);
+        };
     }
 
     /**
-     * Вычисление контрольной суммы
-     *
-     * @param packet пакет
-     * @return контрольная сумма
+     * Параметры запуска, переданные после URL и адреса хаба
      */
-    private byte calculateCRC(Packet packet) {
-        final byte generator = 0x1D; // Генераторный полином
-        byte crc = 0; // Начальное значение
+    static class Options {
+        // Транспорт: http (HttpClient) или nio (SocketChannel)
+        String transport = "http";
+        // Печатать снимок метрик в stderr при завершении
+        boolean stats;
+        // Порт для экспорта метрик по HTTP (0 - не экспортировать)
+        int metricsPort;
+        // Файл, в который записывается снимок метрик при завершении
+        String metricsFile;
+        // Конвейерный цикл опроса: следующий запрос уходит, пока разбирается текущий ответ
+        boolean pipelined;
+        // Число потоков-шардов для обработки ответа (1 - однопоточный режим)
+        int shards = 1;
+        // Файл снимка состояния для быстрого перезапуска
+        String snapshot;
+        // Раз в сколько ответов записывать снимок
+        int snapshotEvery = 20;
+        // Каталог журнала пакетов
+        String journal;
+        // Размер сегмента журнала, МБ
+        int journalSegmentMb = 64;
+        // Сколько последних сегментов журнала хранить (0 - хранить все)
+        int journalSegments = 16;
+        // Гистерезис и выдержка (мс) триггеров по умолчанию
+        int triggerHysteresis;
+        long triggerDwell;
+        // Гистерезис и выдержка отдельных триггеров по ключу "ДАТЧИК:номер триггера"
+        final Map<String, long[]> triggerSettings = new HashMap<>();
+        // Дублировать показания датчиков в колоночное хранилище для сводок по всем датчикам
+        boolean sensorStore;
+        // Бюджет памяти на историю показаний, МБ (0 - историю не вести)
+        int historyMb;
+        // Файл, в который выгружается история показаний при завершении
+        String historyFile;
 
-        // Считаем контрольную сумму
-        for (int i = 0; i < packet.length; i++) {
-            crc ^= packet.payload[i]; // XOR
-            for (int j = 0; j < 8; j++) {
-                if ((crc & 0x80) != 0) { // Если старший бит равен 1
-                    crc = (byte) ((crc << 1) ^ generator); // Сдвигаем влево и XOR
+        /**
+         * Разбор параметров вида --name=value
+         *
+         * @param args аргументы командной строки
+         * @param from индекс первого параметра
+         * @return параметры
+         */
+        static Options parse(String[] args, int from) {
+            var options = new Options();
+            for (int i = from; i < args.length; i++) {
+                var arg = args[i];
+                if (arg.startsWith("--transport=")) {
+                    options.transport = arg.substring("--transport=".length());
+                } else if (arg.equals("--stats")) {
+                    options.stats = true;
+                } else if (arg.startsWith("--metrics-port=")) {
+                    options.metricsPort = Integer.parseInt(arg.substring("--metrics-port=".length()));
+                } else if (arg.startsWith("--metrics-file=")) {
+                    options.metricsFile = arg.substring("--metrics-file=".length());
+                } else if (arg.equals("--pipelined")) {
+                    options.pipelined = true;
+                } else if (arg.startsWith("--shards=")) {
+                    options.shards = Integer.parseInt(arg.substring("--shards=".length()));
+                } else if (arg.startsWith("--snapshot=")) {
+                    options.snapshot = arg.substring("--snapshot=".length());
+                } else if (arg.startsWith("--snapshot-every=")) {
+                    options.snapshotEvery = Integer.parseInt(arg.substring("--snapshot-every=".length()));
+                } else if (arg.startsWith("--journal=")) {
+                    options.journal = arg.substring("--journal=".length());
+                } else if (arg.startsWith("--journal-segment-mb=")) {
+                    options.journalSegmentMb = Integer.parseInt(arg.substring("--journal-segment-mb=".length()));
+                } else if (arg.startsWith("--journal-segments=")) {
+                    options.journalSegments = Integer.parseInt(arg.substring("--journal-segments=".length()));
+                    if (options.journalSegments < 0) {
+                        throw new IllegalArgumentException("Negative journal segment count: " + arg);
+                    }
+                } else if (arg.startsWith("--history-mb=")) {
+                    options.historyMb = Integer.parseInt(arg.substring("--history-mb=".length()));
+                } else if (arg.startsWith("--history-file=")) {
+                    options.historyFile = arg.substring("--history-file=".length());
+                } else if (arg.equals("--sensor-store")) {
+                    options.sensorStore = true;
+                } else if (arg.startsWith("--trigger-hysteresis=")) {
+                    options.triggerHysteresis = Integer.parseInt(arg.substring("--trigger-hysteresis=".length()));
+                    if (options.triggerHysteresis < 0) {
+                        throw new IllegalArgumentException("Negative trigger hysteresis: " + arg);
+                    }
+                } else if (arg.startsWith("--trigger-dwell=")) {
+                    options.triggerDwell = Long.parseLong(arg.substring("--trigger-dwell=".length()));
+                    if (options.triggerDwell < 0) {
+                        throw new IllegalArgumentException("Negative trigger dwell: " + arg);
+                    }
+                } else if (arg.startsWith("--trigger=")) {
+                    // --trigger=ДАТЧИК:номер:гистерезис:выдержка, номер - порядковый номер триггера в описании датчика
+                    var fields = arg.substring("--trigger=".length()).split(":");
+                    if (fields.length != 4) {
+                        throw new IllegalArgumentException("Expected --trigger=SENSOR:N:HYSTERESIS:DWELL: " + arg);
+                    }
+                    int hysteresis = Integer.parseInt(fields[2]);
+                    long dwell = Long.parseLong(fields[3]);
+                    if (hysteresis < 0 || dwell < 0) {
+                        throw new IllegalArgumentException("Negative trigger hysteresis or dwell: " + arg);
+                    }
+                    options.triggerSettings.put(fields[0] + ":" + Integer.parseInt(fields[1]), new long[]{hysteresis, dwell});
                 } else {
-                    crc <<= 1; // Сдвигаем влево
+                    throw new IllegalArgumentException("Unknown option: " + arg);
                 }
             }
+            return options;
         }
-        return crc;
     }
 
     /**
-     * Запись числа в формате ULEB128
+     * Выгрузка истории показаний в CSV: датчик, тип показания, уровень, время, минимум, максимум, среднее
      *
-     * @param buffer буфер
-     * @param value  число
+     * @param file файл выгрузки
+     * @throws IOException при ошибке записи
      */
-    private void writeULEB128(ByteBuffer buffer, BigInteger value) {
-        while (true) {
-            var b = value.byteValue();
-            value = value.shiftRight(7);
-            if (value.equals(BigInteger.ZERO)) {
-                buffer.put(b);
-                break;
-            } else {
-                buffer.put((byte) (b | 0x80));
+    private void writeHistory(Path file) throws IOException {
+        var history = devices.history;
+        var times = new long[SensorHistory.RAW_POINTS];
+        var mins = new int[SensorHistory.RAW_POINTS];
+        var maxs = new int[SensorHistory.RAW_POINTS];
+        var avgs = new double[SensorHistory.RAW_POINTS];
+        try (var out = Files.newBufferedWriter(file)) {
+            out.write("sensor,metric,tier,time,min,max,avg\n");
+            for (var device : devices.values()) {
+                if (!(device instanceof EnvSensor sensor)) {
+                    continue;
+                }
+                for (int type = 0; type < SENSOR_TYPES; type++) {
+                    int series = sensor.series[type];
+                    if (series == -1) {
+                        continue;
+                    }
+                    var prefix = sensor.name + "," + Metrics.SENSOR_NAMES[type] + ",";
+                    int count = history.raw(series, times, mins);
+                    for (int i = 0; i < count; i++) {
+                        out.write(prefix + "raw," + times[i] + "," + mins[i] + "," + mins[i] + "," + mins[i] + "\n");
+                    }
+                    for (var tier : new SensorHistory.Tier[]{history.minutes, history.hours}) {
+                        var name = tier == history.minutes ? "minute," : "hour,";
+                        count = tier.read(series, times, mins, maxs, avgs);
+                        for (int i = 0; i < count; i++) {
+                            out.write(prefix + name + times[i] + "," + mins[i] + "," + maxs[i] + "," + avgs[i] + "\n");
+                        }
+                    }
+                }
             }
         }
     }
 
     /**
-     * Чтение числа в формате ULEB128
-     *
-     * @param buffer буфер
-     * @return число
+     * Начало работы: поиск устройств в сети
      */
-    private static BigInteger readULEB128(ByteBuffer buffer) {
-        BigInteger result = BigInteger.ZERO;
-        int shift = 0;
-        while (true) {
-            var b = buffer.get();
-            result = result.or(BigInteger.valueOf(b & 0x7F).shiftLeft(shift));
-            if ((b & 0x80) == 0) {
-                break;
-            }
-            shift += 7;
-        }
-        return result;
+    void start() {
+        sentWhoIsHere();
     }
 
     /**
-     * Кодирование строки в байты
+     * Подготовка следующего запроса без отправки, для воспроизведения журнала
      *
-     * @param buffer буфер
-     * @param value  строка
+     * @param deferPending отложить регистрацию ожиданий ответа до разбора следующего ответа
+     * @return пакеты запроса без base64, действительны до следующего вызова
      */
-    private void encodeStringToBytes(ByteBuffer buffer, String value) {
-        buffer.put((byte) value.length());
-        buffer.put(value.getBytes(StandardCharsets.UTF_8));
+    ByteBuffer replayRequest(boolean deferPending) {
+        prepareRequest(requests[0], deferPending);
+        return requests[0].packets.duplicate().flip();
     }
 
     /**
-     * Декодирование строки из байтов
+     * Разбор ответа при воспроизведении журнала
      *
-     * @param buffer буфер
-     * @return строка
+     * @param response ответ сервера в base64
      */
-    private static String decodeStringFromBytes(ByteBuffer buffer) {
-        var length = buffer.get();
-        byte[] bytes = new byte[length];
-        buffer.get(bytes);
-        return new String(bytes, StandardCharsets.UTF_8);
+    void replayResponse(ByteBuffer response) {
+        processResponse(response);
+        registerDeferredPending();
     }
 
     /**
      * Запуск хаба
+     *
+     * @return код возврата: 0 - сервер завершил работу (204), 99 - ошибка
      */
-    public void run() {
-        sentWhoIsHere();
-        while (true) {
+    public int run() {
+        MetricsServer metricsServer = null;
+        if (options.metricsPort > 0) {
+            try {
+                metricsServer = startMetricsServer(metrics, options.metricsPort);
+            } catch (IOException e) {
+                return 99;
+            }
+        }
+        if (options.snapshot != null) {
+            try {
+                snapshot = new SnapshotFile(Path.of(options.snapshot));
+            } catch (IOException e) {
+                if (metricsServer != null) {
+                    metricsServer.stop();
+                }
+                return 99;
+            }
+            // Молча отбрасывается только слот с неверной CRC32; остальные причины не восстановить снимок
+            // печатаются, потому что с пустым реестром хаб заново опрашивает всю сеть
+            var data = snapshot.load();
+            if (data != null) {
+                try {
+                    if (!restoreSnapshot(data)) {
+                        System.err.println("snapshot ignored: it was written by another hub address");
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("snapshot restore failed, starting with an empty registry: " + e);
+                }
+            }
+        }
+        if (options.journal != null) {
+            try {
+                journal = new Journal(Path.of(options.journal), options.journalSegmentMb * 1024L * 1024L,
+                        options.journalSegments, metrics.journalDropped, hubAddress,
+                        restoredDevices != null ? Journal.FLAG_RESTORED : 0);
+            } catch (IOException e) {
+                if (metricsServer != null) {
+                    metricsServer.stop();
+                }
+                return 99;
+            }
+        }
+        if (snapshot != null) {
+            snapshotWriter = new SnapshotWriter(snapshot);
+        }
+
+        start();
+        if (options.pipelined) {
+            runPipelined();
+        }
+        while (exitCode == RUNNING) {
             sentNextRequest();
         }
+
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        if (snapshot != null) {
+            snapshotWriter.close();
+            snapshotWriter.store(encodeSnapshot());
+            try {
+                snapshot.close();
+            } catch (IOException ignored) {
+            }
+        }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ignored) {
+            }
+        }
+        if (options.stats) {
+            System.err.print(metrics.toPrometheus());
+        }
+        if (options.metricsFile != null) {
+            try {
+                Files.writeString(Path.of(options.metricsFile), metrics.toPrometheus());
+            } catch (IOException ignored) {
+            }
+        }
+        if (options.historyFile != null && devices.history != null) {
+            try {
+                writeHistory(Path.of(options.historyFile));
+            } catch (IOException e) {
+                System.err.println("history write failed: " + e);
+            }
+        }
+        if (shards != null) {
+            shards.close();
+        }
+        try {
+            transport.close();
+        } catch (IOException ignored) {
+        }
+        return exitCode;
     }
 
+    /**
+     * Точка входа
+     *
+     * @param args URL сервера, адрес хаба и необязательные параметры:
+     *             --transport=http|nio, --stats, --pipelined, --metrics-port=N, --metrics-file=path,
+     *             --shards=N, --snapshot=path, --snapshot-every=N,
+     *             --journal=dir, --journal-segment-mb=N
+     */
     public static void main(String[] args) {
         if (args.length < 2) {
             System.exit(99);
         }
 
-        var smartHub = new SmartHomeHub(args[0], args[1]);
+        SmartHomeHub smartHub;
+        try {
+            var options = Options.parse(args, 2);
+            smartHub = new SmartHomeHub(createTransport(options.transport, args[0]), args[1], options);
+        } catch (Exception e) {
+            System.exit(99);
+            return;
+        }
 
-        smartHub.run();
+        System.exit(smartHub.run());
     }
 }
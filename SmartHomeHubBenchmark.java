@@ -0,0 +1,228 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Микробенчмарки горячих путей хаба: кодек ULEB128, CRC-8, кодирование исходящих пакетов,
+ * разбор ответа и обработка обновлений устройств
+ * <p>
+ * Запуск: javac -encoding UTF-8 *.java && java SmartHomeHubBenchmark [подстрока имени сценария]
+ * </p>
+ * <p>
+ * Каждый сценарий прогревается, затем замеряется несколько раз. Печатается пропускная способность,
+ * время на операцию, выделенная память на операцию (счётчик выделений текущего потока)
+ * и число сборок мусора за замер.
+ * </p>
+ */
+public class SmartHomeHubBenchmark {
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURE_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 300_000_000L;
+    private static final String HUB_ADDRESS = "ef0";
+    private static final short HUB = 0xef0;
+    private static final long TIMESTAMP = 1_688_984_021_000L;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Сюда складываются результаты операций, чтобы JIT не выбросил вычисления
+    private static volatile long sink;
+
+    /**
+     * Сценарий бенчмарка
+     */
+    private record Scenario(String name, LongSupplier operation) {
+    }
+
+    public static void main(String[] args) {
+        var filter = args.length > 0 ? args[0] : "";
+        System.out.printf("%-32s %14s %12s %12s %10s %6s%n", "benchmark", "ops/s", "ns/op", "B/op", "MB/s", "gc");
+        for (var scenario : scenarios()) {
+            if (scenario.name().contains(filter)) {
+                run(scenario);
+            }
+        }
+    }
+
+    private static List<Scenario> scenarios() {
+        var scenarios = new ArrayList<Scenario>();
+
+        // ULEB128: 14-битный адрес (2 байта) и временная метка (6 байт)
+        var address = ByteBuffer.allocate(16);
+        SmartHomeHub.writeULEB128(address, 0x3FFF);
+        var timestamp = ByteBuffer.allocate(16);
+        SmartHomeHub.writeULEB128(timestamp, TIMESTAMP);
+        scenarios.add(new Scenario("uleb128.read.address", () -> SmartHomeHub.readULEB128(address.position(0))));
+        scenarios.add(new Scenario("uleb128.read.timestamp", () -> SmartHomeHub.readULEB128(timestamp.position(0))));
+        var out = ByteBuffer.allocate(16);
+        scenarios.add(new Scenario("uleb128.write.timestamp", () -> {
+            SmartHomeHub.writeULEB128(out.clear(), TIMESTAMP);
+            return out.position();
+        }));
+
+        // CRC-8 для типичных длин тела пакета
+        for (int length : new int[]{16, 64, 255}) {
+            var bytes = new byte[length];
+            new java.util.Random(length).nextBytes(bytes);
+            scenarios.add(new Scenario("crc8." + length, () -> SmartHomeHub.Crc8.compute(bytes, 0, length)));
+        }
+
+        // Кодирование исходящей пачки SETSTATUS
+        for (int count : new int[]{1, 100, 1000}) {
+            var hub = newHub();
+            var payloads = new ArrayList<SmartHomeHub.Payload>();
+            for (int i = 0; i < count; i++) {
+                var status = new SmartHomeHub.Payload.CmdBodyStatus();
+                status.status = i % 2 == 0;
+                payloads.add(SmartHomeHub.Payload.create()
+                        .setSrc(HUB)
+                        .setDst((short) (i + 1))
+                        .setSerial(i + 1)
+                        .setDevType((byte) 0x04)
+                        .setCmd((byte) 0x05)
+                        .setCmdBody(status));
+            }
+            var buffer = new SmartHomeHub.EncodeBuffer();
+            scenarios.add(new Scenario("encodePacketsToTransfer." + count,
+                    () -> hub.encodePacketsToTransfer(payloads, buffer).remaining()));
+        }
+
+        // Разбор ответа из STATUS от зарегистрированных ламп
+        for (int count : new int[]{1, 100, 10_000}) {
+            var hub = newHub();
+            var setup = new SmartHomeHubPackets();
+            setup.tick(TIMESTAMP);
+            for (int i = 1; i <= count; i++) {
+                setup.iAmHere((short) i, 0x04, "LAMP" + i, new byte[0]);
+            }
+            hub.processResponse(setup.toBase64());
+            hub.sentQueue.clear();
+
+            var packets = new SmartHomeHubPackets();
+            for (int i = 1; i <= count; i++) {
+                packets.status((short) i, 0x04, (byte) (i & 1));
+            }
+            packets.tick(TIMESTAMP);
+            var response = packets.toBase64();
+            scenarios.add(new Scenario("processResponse." + count, () -> {
+                hub.processResponse(response.position(0));
+                return hub.devices.size();
+            }));
+        }
+
+        // Обработка обновлений: переключатели по 4 лампы, обновляется каждый десятый переключатель
+        for (int count : new int[]{100, 1000, 10_000}) {
+            var hub = newHub();
+            var setup = new SmartHomeHubPackets();
+            setup.tick(TIMESTAMP);
+            int switches = count / 5;
+            short next = 1;
+            for (int i = 0; i < switches; i++) {
+                var names = new String[4];
+                for (int j = 0; j < names.length; j++) {
+                    names[j] = "LAMP" + next;
+                    setup.iAmHere(next++, 0x04, names[j], new byte[0]);
+                }
+                setup.iAmHere(next++, 0x03, "SWITCH" + i, SmartHomeHubPackets.switchProps(names));
+            }
+            hub.processResponse(setup.toBase64());
+            hub.sentQueue.clear();
+
+            var updated = new ArrayList<SmartHomeHub.Switch>();
+            for (var device : hub.devices.values()) {
+                if (device instanceof SmartHomeHub.Switch switchDevice && updated.size() < Math.max(1, switches / 10)) {
+                    updated.add(switchDevice);
+                }
+            }
+            scenarios.add(new Scenario("processUpdateDevices." + count, () -> {
+                for (var switchDevice : updated) {
+                    switchDevice.status = !switchDevice.status;
+                    switchDevice.markUpdated();
+                }
+                hub.processUpdateDevices();
+                int sent = hub.sentQueue.size();
+                hub.sentQueue.clear();
+                return sent;
+            }));
+        }
+        return scenarios;
+    }
+
+    /**
+     * Прогрев и замер одного сценария
+     *
+     * @param scenario сценарий
+     */
+    private static void run(Scenario scenario) {
+        var operation = scenario.operation();
+        // Подбираем размер пачки так, чтобы пачка шла около миллисекунды
+        long batch = 1;
+        while (true) {
+            long started = System.nanoTime();
+            for (long i = 0; i < batch; i++) {
+                sink += operation.getAsLong();
+            }
+            if (System.nanoTime() - started > 1_000_000L || batch > (1L << 30)) {
+                break;
+            }
+            batch *= 2;
+        }
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(operation, batch);
+        }
+        double opsPerSecond = 0;
+        double bytesPerOp = 0;
+        long gcCount = 0;
+        for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+            long gcBefore = gcCount();
+            var result = iteration(operation, batch);
+            gcCount += gcCount() - gcBefore;
+            opsPerSecond += result[0] * 1e9 / result[1];
+            bytesPerOp += (double) result[2] / result[0];
+        }
+        opsPerSecond /= MEASURE_ITERATIONS;
+        bytesPerOp /= MEASURE_ITERATIONS;
+        System.out.printf("%-32s %14.1f %12.1f %12.1f %10.1f %6d%n",
+                scenario.name(), opsPerSecond, 1e9 / opsPerSecond, bytesPerOp,
+                bytesPerOp * opsPerSecond / (1024 * 1024), gcCount);
+    }
+
+    /**
+     * Один замер
+     *
+     * @return число операций, затраченное время в наносекундах, выделенные байты
+     */
+    private static long[] iteration(LongSupplier operation, long batch) {
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = THREADS.getThreadAllocatedBytes(thread);
+        long started = System.nanoTime();
+        long deadline = started + ITERATION_NANOS;
+        long operations = 0;
+        long now;
+        do {
+            for (long i = 0; i < batch; i++) {
+                sink += operation.getAsLong();
+            }
+            operations += batch;
+            now = System.nanoTime();
+        } while (now < deadline);
+        long allocated = THREADS.getThreadAllocatedBytes(thread) - allocatedBefore;
+        return new long[]{operations, now - started, allocated};
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static SmartHomeHub newHub() {
+        return new SmartHomeHub(null, HUB_ADDRESS, new SmartHomeHub.Options());
+    }
+}
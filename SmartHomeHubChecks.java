@@ -0,0 +1,1776 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Проверки хаба
+ * <p>
+ * Быстрые реализации сверяются с простыми эталонными: CRC-8, очередь ожиданий, кодирование и потоковый разбор
+ * пакетов, хранилище показаний и уровни истории. Сценарии через processResponse и run() проверяют реестр
+ * устройств, триггеры, снимок и журнал, одинаковые команды в пошаговом, конвейерном и шардированном режимах,
+ * NIO-транспорт против локальных серверов, метрики и запуск нескольких хабов.
+ * </p>
+ * <p>
+ * Запуск: javac -encoding UTF-8 *.java && java SmartHomeHubChecks [подстрока имени проверки]
+ * </p>
+ * <p>
+ * Каждая проверка печатает ok или FAIL с причиной. Код возврата: 0, если все проверки прошли, иначе 1.
+ * Случайные проверки используют фиксированное зерно, поэтому повторяются от запуска к запуску.
+ * </p>
+ */
+public class SmartHomeHubChecks {
+    private static final String HUB_ADDRESS = "ef0";
+    private static final short HUB = 0xef0;
+
+    /**
+     * Проверка
+     */
+    private record Check(String name, Runnable body) {
+    }
+
+    public static void main(String[] args) {
+        var filter = args.length > 0 ? args[0] : "";
+        int failed = 0;
+        for (var check : checks()) {
+            if (!check.name().contains(filter)) {
+                continue;
+            }
+            try {
+                check.body().run();
+                System.out.println("ok   " + check.name());
+            } catch (Throwable e) {
+                System.out.println("FAIL " + check.name() + ": " + e);
+                failed++;
+            }
+        }
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static List<Check> checks() {
+        var checks = new ArrayList<Check>();
+        checks.add(new Check("crc8.matches-bit-loop", SmartHomeHubChecks::crc8MatchesBitLoop));
+        checks.add(new Check("encode.batch-grows-past-capacity", SmartHomeHubChecks::encodeBatchGrows));
+        checks.add(new Check("decode.split-chunks", SmartHomeHubChecks::decodeSplitChunks));
+        checks.add(new Check("pending.matches-naive-queue", SmartHomeHubChecks::pendingMatchesNaiveQueue));
+        checks.add(new Check("registry.out-of-range-source", SmartHomeHubChecks::outOfRangeSource));
+        checks.add(new Check("registry.target-links", SmartHomeHubChecks::registryTargetLinks));
+        checks.add(new Check("snapshot.grow-keeps-a-good-slot", SmartHomeHubChecks::snapshotGrowKeepsGoodSlot));
+        checks.add(new Check("snapshot.non-ascii-names", SmartHomeHubChecks::snapshotNonAsciiNames));
+        checks.add(new Check("snapshot.rejections-are-reported", SmartHomeHubChecks::snapshotRejectionsReported));
+        checks.add(new Check("snapshot.written-off-the-poll-thread", SmartHomeHubChecks::snapshotWrittenInBackground));
+        checks.add(new Check("coalescing.unsolicited-status", SmartHomeHubChecks::unsolicitedStatusKeepsCommand));
+        checks.add(new Check("triggers.sensor-before-lamp", SmartHomeHubChecks::sensorBeforeLamp));
+        checks.add(new Check("triggers.hysteresis-band", SmartHomeHubChecks::hysteresisBand));
+        checks.add(new Check("triggers.dwell-expiry", SmartHomeHubChecks::dwellExpiry));
+        checks.add(new Check("triggers.pending-falls-back", SmartHomeHubChecks::pendingFallsBack));
+        checks.add(new Check("triggers.matches-state-model", SmartHomeHubChecks::triggersMatchStateModel));
+        checks.add(new Check("triggers.shards-match-lock-step", SmartHomeHubChecks::shardsMatchLockStep));
+        checks.add(new Check("pipelined.matches-lock-step", SmartHomeHubChecks::pipelinedMatchesLockStep));
+        checks.add(new Check("options.negative-trigger-settings", SmartHomeHubChecks::negativeTriggerSettings));
+        checks.add(new Check("readings.match-sensor-scan", SmartHomeHubChecks::readingsMatchSensorScan));
+        checks.add(new Check("history.tiers-match-direct-aggregation", SmartHomeHubChecks::historyTiersMatch));
+        checks.add(new Check("history.series-on-first-status", SmartHomeHubChecks::historySeriesOnFirstStatus));
+        checks.add(new Check("metrics.count-after-address-filter", SmartHomeHubChecks::countAfterAddressFilter));
+        checks.add(new Check("metrics.stop-ends-server-thread", SmartHomeHubChecks::stopEndsServerThread));
+        checks.add(new Check("launcher.per-hub-options", SmartHomeHubChecks::launcherPerHubOptions));
+        checks.add(new Check("nio.http-server", SmartHomeHubChecks::nioAgainstHttpServer));
+        checks.add(new Check("nio.raw-responses", SmartHomeHubChecks::nioRawResponses));
+        checks.add(new Check("journal.segment-retention", SmartHomeHubChecks::journalSegmentRetention));
+        checks.add(new Check("journal.survives-write-failures", SmartHomeHubChecks::journalSurvivesWriteFailures));
+        return checks;
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    // ---------- CRC-8 ----------
+
+    /**
+     * Прежний побитовый расчёт CRC-8 (полином 0x1D), эталон для таблиц Crc8
+     */
+    private static byte calculateCRC(byte[] bytes, int offset, int length) {
+        final byte generator = 0x1D;
+        byte crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= bytes[i];
+            for (int j = 0; j < 8; j++) {
+                if ((crc & 0x80) != 0) {
+                    crc = (byte) ((crc << 1) ^ generator);
+                } else {
+                    crc <<= 1;
+                }
+            }
+        }
+        return crc;
+    }
+
+    /**
+     * Crc8.compute совпадает с побитовым расчётом для массивов и буферов всех видов: длины 0..255
+     * покрывают и путь slicing-by-8, и хвост, смещения - невыровненные участки
+     */
+    private static void crc8MatchesBitLoop() {
+        var random = new Random(2);
+        for (int iteration = 0; iteration < 20_000; iteration++) {
+            int length = random.nextInt(256);
+            int offset = random.nextInt(64);
+            var bytes = new byte[offset + length + random.nextInt(16)];
+            random.nextBytes(bytes);
+            byte expected = calculateCRC(bytes, offset, length);
+            var context = " (length " + length + ", offset " + offset + ")";
+
+            check(SmartHomeHub.Crc8.compute(bytes, offset, length) == expected, "byte[]" + context);
+            check(SmartHomeHub.Crc8.compute(ByteBuffer.wrap(bytes), offset, length) == expected, "heap buffer" + context);
+            // Срез с ненулевым arrayOffset
+            int cut = random.nextInt(offset + 1);
+            var slice = ByteBuffer.wrap(bytes, cut, bytes.length - cut).slice();
+            check(SmartHomeHub.Crc8.compute(slice, offset - cut, length) == expected, "sliced buffer" + context);
+            // Прямые буферы без массива: big-endian идёт через getLong, little-endian - побайтово
+            for (var order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+                var direct = ByteBuffer.allocateDirect(bytes.length).order(order);
+                direct.put(bytes).clear();
+                check(SmartHomeHub.Crc8.compute(direct, offset, length) == expected, "direct " + order + context);
+            }
+        }
+    }
+
+    // ---------- Кодирование и разбор пакетов ----------
+
+    /**
+     * Пакеты, закодированные одним пакетом за раз и собранные вручную: длина, ULEB128, CRC-8 побитовым расчётом
+     */
+    private static byte[] encodeByHand(List<SmartHomeHub.Payload> payloads) {
+        var out = new ByteArrayOutputStream();
+        for (var payload : payloads) {
+            var packet = ByteBuffer.allocate(64);
+            packet.put((byte) 0);
+            SmartHomeHub.writeULEB128(packet, payload.src);
+            SmartHomeHub.writeULEB128(packet, payload.dst);
+            SmartHomeHub.writeULEB128(packet, payload.serial);
+            packet.put(payload.dev_type).put(payload.cmd);
+            if (payload.cmd == 0x01) {
+                SmartHomeHubPackets.putString(packet, "SmartHub");
+            } else if (payload.cmd == 0x05) {
+                packet.put((byte) (((SmartHomeHub.Payload.CmdBodyStatus) payload.cmd_body).status ? 1 : 0));
+            }
+            int length = packet.position() - 1;
+            packet.put(0, (byte) length);
+            packet.put(calculateCRC(packet.array(), 1, length));
+            out.write(packet.array(), 0, packet.position());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Пачка, переросшая начальные 2048 байт EncodeBuffer, кодируется целиком и совпадает с ручной сборкой
+     */
+    private static void encodeBatchGrows() {
+        var hub = newHub();
+        var random = new Random(10);
+        var payloads = new ArrayList<SmartHomeHub.Payload>();
+        for (int i = 0; i < 600; i++) {
+            byte cmd = i % 50 == 0 ? (byte) 0x01 : random.nextBoolean() ? (byte) 0x03 : (byte) 0x05;
+            var payload = SmartHomeHub.Payload.create()
+                    .setSrc(HUB)
+                    .setDst(cmd == 0x01 ? SmartHomeHub.BROADCASTING_ADDRESS : (short) random.nextInt(0x3FFF))
+                    .setSerial(1 + random.nextInt(1 << 20))
+                    .setDevType((byte) 0x01)
+                    .setCmd(cmd);
+            if (cmd == 0x05) {
+                var status = new SmartHomeHub.Payload.CmdBodyStatus();
+                status.status = random.nextBoolean();
+                payload.setCmdBody(status);
+            }
+            payloads.add(payload);
+        }
+
+        var encoder = Base64.getUrlEncoder().withoutPadding();
+        // Около 155 пакетов заполняют начальный буфер: рост приходится на каждое место пакета
+        for (int count = 1; count <= 250; count++) {
+            var batch = payloads.subList(0, count);
+            check(sameBytes(hub.encodePacketsToTransfer(batch, new SmartHomeHub.EncodeBuffer()),
+                    encoder.encode(encodeByHand(batch))), count + " packets differ in a fresh buffer");
+        }
+        // Переиспользуемый буфер: после большой пачки маленькая, затем снова большая
+        var buffer = new SmartHomeHub.EncodeBuffer();
+        for (int count : new int[]{1, 600, 3, 600, 0, 7}) {
+            var batch = payloads.subList(0, count);
+            check(sameBytes(hub.encodePacketsToTransfer(batch, buffer), encoder.encode(encodeByHand(batch))),
+                    count + " packets differ in a reused buffer");
+        }
+    }
+
+    /**
+     * Ответ, поданный PacketStreamDecoder кусками любой длины, разбирается так же, как целиком: разрезы проходят
+     * через длины пакетов, четвёрки base64, переводы строк и выравнивание, а длинные пакеты переходят через край
+     * окна декодера
+     */
+    private static void decodeSplitChunks() {
+        var remainders = new HashSet<Integer>();
+        for (int devices = 30; devices < 36; devices++) {
+            var packets = new SmartHomeHubPackets();
+            packets.tick(1000);
+            var names = new ArrayList<String>();
+            for (int i = 0; i < devices; i++) {
+                var name = "DEVICE-" + i + "-" + "x".repeat(i * 7 % 40);
+                names.add(name);
+                if (i % 3 == 0) {
+                    // Длинный список целей - пакет почти максимальной длины
+                    var targets = new String[20 + i % 3];
+                    Arrays.fill(targets, "LAMP-" + i);
+                    packets.iAmHere(1 + i, 0x03, name, SmartHomeHubPackets.switchProps(targets));
+                } else {
+                    packets.iAmHere(1 + i, 0x04, name, new byte[0]);
+                }
+            }
+            var encoded = packets.toBase64();
+            var raw = Base64.getUrlDecoder().decode(encoded.duplicate()).array();
+            remainders.add(raw.length % 3);
+
+            var padded = Base64.getUrlEncoder().encodeToString(raw);
+            var wrapped = Base64.getMimeEncoder().encodeToString(raw).replace('+', '-').replace('/', '_');
+            var expected = decodeRun(StandardCharsets.US_ASCII.decode(encoded).toString(), null, 0, names);
+            for (var body : List.of(padded, wrapped)) {
+                check(decodeRun(body, null, 0, names).equals(expected), "whole body differs");
+            }
+            for (int seed = 0; seed < 40; seed++) {
+                for (var body : List.of(padded, wrapped)) {
+                    int maxChunk = seed < 10 ? 1 : seed < 20 ? 5 : 300;
+                    check(decodeRun(body, new Random(seed), maxChunk, names).equals(expected),
+                            "split body differs (seed " + seed + ", chunks up to " + maxChunk + ")");
+                }
+            }
+        }
+        check(remainders.equals(Set.of(0, 1, 2)), "bodies of every length modulo 3: " + remainders);
+    }
+
+    // Прогон hub.run() с одним ответом; результат - следующий запрос хаба
+    private static List<String> decodeRun(String body, Random splits, int maxChunk, List<String> names) {
+        var transport = new ScriptedTransport().respond(ByteBuffer.wrap(body.getBytes(StandardCharsets.US_ASCII)));
+        if (splits != null) {
+            transport.split(splits, maxChunk);
+        }
+        var hub = new SmartHomeHub(transport, HUB_ADDRESS, new SmartHomeHub.Options());
+        check(hub.run() == 0, "hub stops on 204");
+        check(hub.metrics.crcFailures.sum() == 0, "no CRC failures");
+        for (var name : names) {
+            check(hub.devices.getByName(name) != null, name + " registered");
+        }
+        return transport.requests;
+    }
+
+    // ---------- Ожидание ответов и реестр ----------
+
+    /**
+     * PendingResponses ведёт себя как простая очередь записей с пометкой "ответ снят"
+     */
+    private static void pendingMatchesNaiveQueue() {
+        var random = new Random(5);
+        var pending = new SmartHomeHub.PendingResponses();
+        // Эталон: {адрес, время отправки, снят ли ответ}
+        var queue = new ArrayDeque<long[]>();
+        long now = 0;
+        for (int step = 0; step < 500_000; step++) {
+            int operation = random.nextInt(10);
+            var address = (short) random.nextInt(40);
+            if (operation < 4) {
+                now += random.nextInt(3);
+                pending.add(address, now);
+                queue.add(new long[]{address, now, 0});
+            } else if (operation < 7) {
+                long expected = SmartHomeHub.PendingResponses.NOT_WAITING;
+                for (var entry : queue) {
+                    if (entry[0] == address && entry[2] == 0) {
+                        entry[2] = 1;
+                        expected = entry[1];
+                        break;
+                    }
+                }
+                check(pending.poll(address) == expected, "poll at step " + step);
+            } else if (operation < 8) {
+                for (var entry : queue) {
+                    if (entry[0] == address) {
+                        entry[2] = 1;
+                    }
+                }
+                pending.clear(address);
+            } else {
+                long deadline = now - random.nextInt(20);
+                short expected = SmartHomeHub.PendingResponses.NONE;
+                while (!queue.isEmpty() && queue.peekFirst()[1] < deadline) {
+                    var entry = queue.pollFirst();
+                    if (entry[2] == 0) {
+                        for (var other : queue) {
+                            if (other[0] == entry[0]) {
+                                other[2] = 1;
+                            }
+                        }
+                        expected = (short) entry[0];
+                        break;
+                    }
+                }
+                check(pending.pollExpired(deadline) == expected, "pollExpired at step " + step);
+            }
+            check(pending.size() == queue.size(), "size at step " + step);
+        }
+        // Адреса вне 14-битного диапазона не индексируют таблицы по адресу
+        for (var address : new short[]{0x4000, 0x5000, -1, Short.MIN_VALUE}) {
+            pending.add(address, now);
+            check(pending.poll(address) == SmartHomeHub.PendingResponses.NOT_WAITING, "poll out-of-range " + address);
+            pending.clear(address);
+        }
+    }
+
+    /**
+     * IAMHERE и WHOISHERE с адресом вне 14-битного диапазона (в том числе отрицательным после приведения к short)
+     * не регистрируют устройство и не роняют хаб при подготовке следующего запроса
+     */
+    private static void outOfRangeSource() {
+        var hub = newHub();
+        hub.start();
+        hub.replayRequest(false);
+        var packets = new SmartHomeHubPackets();
+        packets.tick(1000);
+        packets.iAmHere(0x5000, 0x04, "FAR", new byte[0]);
+        packets.iAmHere(0xFFFF, 0x04, "NEGATIVE", new byte[0]);
+        packets.iAmHere(0x8001, 0x05, "NEGATIVE2", new byte[0]);
+        packets.whoIsHere(0x4000, 0x04, "EDGE");
+        packets.iAmHere(0x0001, 0x04, "LAMP", new byte[0]);
+        hub.processResponse(packets.toBase64());
+        // Здесь прежде падало: GETSTATUS к устройству с адресом 0x5000 индексировал таблицы ожидания
+        hub.replayRequest(false);
+
+        check(hub.devices.size() == 1, "only the valid lamp is registered, got " + hub.devices.size());
+        check(hub.devices.get((short) 1) != null, "valid lamp is registered");
+        check(hub.devices.getByName("FAR") == null && hub.devices.getByName("NEGATIVE") == null
+                && hub.devices.getByName("EDGE") == null, "out-of-range devices are not registered");
+
+        // STATUS от недопустимого адреса тоже отбрасывается без исключения
+        var status = new SmartHomeHubPackets();
+        status.status(0x5000, 0x04, (byte) 1);
+        status.tick(1100);
+        hub.processResponse(status.toBase64());
+        hub.replayRequest(false);
+    }
+
+    // ---------- Снимок ----------
+
+    /**
+     * Рост слотов снимка не усекает файл и до переключения заголовка оставляет прежний снимок читаемым
+     */
+    /**
+     * Имена с не-ASCII символами переживают запись и чтение снимка: длина строки считается в байтах UTF-8
+     */
+    private static void snapshotNonAsciiNames() {
+        try {
+            var file = Files.createTempFile("snapshot", ".bin");
+            try {
+                var options = new SmartHomeHub.Options();
+                options.snapshot = file.toString();
+                var packets = new SmartHomeHubPackets();
+                packets.tick(1000);
+                packets.iAmHere(1, 0x04, "lémpe", new byte[0]);
+                packets.iAmHere(2, 0x03, "выключатель", SmartHomeHubPackets.switchProps("lémpe", "ёлка-\uD83C\uDF84"));
+                var transport = new ScriptedTransport().respond(packets.toBase64());
+                packets.status(1, 0x04, (byte) 1);
+                packets.tick(1100);
+                transport.respond(packets.toBase64());
+                var first = new SmartHomeHub(transport, HUB_ADDRESS, options);
+                check(first.run() == 0, "first run ends with 204");
+                check(first.devices.size() == 2, "both devices registered in the first run");
+
+                var second = new SmartHomeHub(new ScriptedTransport(), HUB_ADDRESS, options);
+                check(second.run() == 0, "second run ends with 204");
+                var lamp = second.devices.getByName("lémpe");
+                check(lamp instanceof SmartHomeHub.Lamp restored && restored.status, "lamp is restored with its state");
+                var switchDevice = second.devices.getByName("выключатель");
+                check(switchDevice != null && switchDevice.targets.length == 2, "switch is restored");
+                check(switchDevice.targets[0].device == lamp && switchDevice.targets[1].name.equals("ёлка-\uD83C\uDF84"),
+                        "switch targets keep their names");
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Снимок, который не удалось восстановить, не пропадает молча: битые данные, чужой адрес хаба
+     * и файл неизвестного формата печатаются в stderr, а слот с неверной CRC32 просто не читается
+     */
+    private static void snapshotRejectionsReported() {
+        try {
+            var file = Files.createTempFile("snapshot", ".bin");
+            try {
+                var options = new SmartHomeHub.Options();
+                options.snapshot = file.toString();
+
+                // Адрес этого хаба и обрыв сразу за ним
+                try (var snapshot = new SmartHomeHub.SnapshotFile(file)) {
+                    snapshot.store(ByteBuffer.wrap(new byte[]{0x0e, (byte) 0xf0, (byte) 0x80}));
+                }
+                var output = stderrOf(() -> new SmartHomeHub(new ScriptedTransport(), HUB_ADDRESS, options).run());
+                check(output.contains("snapshot restore failed"), "corrupt snapshot is reported: " + output);
+
+                try (var snapshot = new SmartHomeHub.SnapshotFile(file)) {
+                    snapshot.store(ByteBuffer.wrap(new byte[]{0x0e, (byte) 0xf0, 1, 1, 0}));
+                }
+                output = stderrOf(() -> new SmartHomeHub(new ScriptedTransport(), "ef1", options).run());
+                check(output.contains("another hub address"), "foreign hub address is reported: " + output);
+
+                Files.write(file, randomBytes(4096, 7));
+                output = stderrOf(() -> new SmartHomeHub(new ScriptedTransport(), HUB_ADDRESS, options).run());
+                check(output.contains("unknown format"), "unknown file format is reported: " + output);
+
+                // Испорченный слот при целом заголовке: снимка просто нет
+                try (var snapshot = new SmartHomeHub.SnapshotFile(file)) {
+                    snapshot.store(ByteBuffer.wrap(new byte[]{0x0e, (byte) 0xf0, 1, 1, 0}));
+                }
+                var bytes = Files.readAllBytes(file);
+                for (int i = 16; i < bytes.length; i++) {
+                    // Портим адрес хаба в данных слота, не трогая заголовок файла
+                    if (bytes[i] == (byte) 0xf0) {
+                        bytes[i] = 0x0f;
+                    }
+                }
+                Files.write(file, bytes);
+                output = stderrOf(() -> new SmartHomeHub(new ScriptedTransport(), HUB_ADDRESS, options).run());
+                check(output.isEmpty(), "bad CRC32 is silent: " + output);
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Снимок пишется и сбрасывается на диск потоком записи; пока он занят, следующий снимок не принимается,
+     * а последний снимок при завершении пишется в вызывающем потоке
+     */
+    private static void snapshotWrittenInBackground() {
+        try {
+            var file = Files.createTempFile("snapshot", ".bin");
+            try {
+                var release = new CountDownLatch(1);
+                var writers = new ConcurrentLinkedQueue<String>();
+                var snapshot = new SmartHomeHub.SnapshotFile(file) {
+                    @Override
+                    void store(ByteBuffer data) throws IOException {
+                        writers.add(Thread.currentThread().getName());
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        super.store(data);
+                    }
+                };
+                var writer = new SmartHomeHub.SnapshotWriter(snapshot);
+                var first = new SmartHomeHub.EncodeBuffer();
+                var data = first.reserve(16).put(randomBytes(16, 1)).flip();
+                var next = writer.submit(first, data);
+                check(next != first, "writer hands back its own buffer");
+                check(!writer.idle(), "writer is busy while the snapshot is being stored");
+                release.countDown();
+                long deadline = System.nanoTime() + 2_000_000_000L;
+                while (!writer.idle() && System.nanoTime() < deadline) {
+                    Thread.sleep(1);
+                }
+                check(writer.idle(), "writer becomes idle");
+                check(List.copyOf(writers).equals(List.of("hub-snapshot")), "stored on the writer thread: " + writers);
+                writer.close();
+                var last = randomBytes(32, 2);
+                writer.store(ByteBuffer.wrap(last));
+                check(List.copyOf(writers).equals(List.of("hub-snapshot", Thread.currentThread().getName())),
+                        "last snapshot is stored by the caller: " + writers);
+                snapshot.close();
+                try (var reopened = new SmartHomeHub.SnapshotFile(file)) {
+                    check(sameBytes(reopened.load(), last), "last snapshot is on disk");
+                }
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AssertionError(e);
+        }
+    }
+
+    // Всё, что напечатано в stderr за время работы body
+    private static String stderrOf(Runnable body) {
+        var saved = System.err;
+        var captured = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(captured, true, StandardCharsets.UTF_8));
+        try {
+            body.run();
+        } finally {
+            System.setErr(saved);
+        }
+        return captured.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void snapshotGrowKeepsGoodSlot() {
+        try {
+            var file = Files.createTempFile("snapshot", ".bin");
+            try {
+                var small = randomBytes(1000, 1);
+                var large = randomBytes(200_000, 2);
+                var larger = randomBytes(700_000, 3);
+                try (var snapshot = new SmartHomeHub.SnapshotFile(file)) {
+                    snapshot.store(ByteBuffer.wrap(small));
+                }
+                long sizeBefore = Files.size(file);
+                byte[] header = Arrays.copyOf(Files.readAllBytes(file), 16);
+                try (var snapshot = new SmartHomeHub.SnapshotFile(file)) {
+                    check(sameBytes(snapshot.load(), small), "small snapshot is read back");
+                    snapshot.store(ByteBuffer.wrap(large));
+                }
+                check(Files.size(file) > sizeBefore, "file only grows");
+                try (var snapshot = new SmartHomeHub.SnapshotFile(file)) {
+                    check(sameBytes(snapshot.load(), large), "grown snapshot is read back");
+                }
+
+                // Обрыв между записью новой пары и переключением заголовка: заголовок прежний
+                byte[] grownHeader = Arrays.copyOf(Files.readAllBytes(file), 16);
+                try (var channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    channel.write(ByteBuffer.wrap(header), 0);
+                }
+                try (var snapshot = new SmartHomeHub.SnapshotFile(file)) {
+                    check(sameBytes(snapshot.load(), small), "old pair still holds the previous snapshot");
+                }
+                try (var channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    channel.write(ByteBuffer.wrap(grownHeader), 0);
+                }
+
+                // Второй рост и обычные записи после него
+                try (var snapshot = new SmartHomeHub.SnapshotFile(file)) {
+                    check(sameBytes(snapshot.load(), large), "grown header restored");
+                    snapshot.store(ByteBuffer.wrap(larger));
+                    snapshot.store(ByteBuffer.wrap(small));
+                }
+                try (var snapshot = new SmartHomeHub.SnapshotFile(file)) {
+                    check(sameBytes(snapshot.load(), small), "latest snapshot wins after second growth");
+                }
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        var bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static boolean sameBytes(ByteBuffer buffer, byte[] expected) {
+        return buffer != null && buffer.equals(ByteBuffer.wrap(expected));
+    }
+
+    /**
+     * Случайные регистрации и удаления устройств с целями: ссылка каждой цели ведёт на устройство
+     * с этим именем, если оно зарегистрировано, а ссылки удалённых устройств сброшены
+     */
+    private static void registryTargetLinks() {
+        var random = new Random(5);
+        var hub = newHub();
+        var registry = hub.devices;
+        var removed = new ArrayList<SmartHomeHub.Device>();
+        for (int step = 0; step < 20000; step++) {
+            short address = (short) (1 + random.nextInt(40));
+            var name = "D" + random.nextInt(30);
+            int action = random.nextInt(4);
+            if (action == 0) {
+                var lamp = hub.new Lamp();
+                lamp.address = address;
+                lamp.name = name;
+                registry.put(lamp);
+            } else if (action == 1) {
+                var triggers = new Object[random.nextInt(4) * 3];
+                for (int i = 0; i < triggers.length; i += 3) {
+                    triggers[i] = triggerOp(true, true, 3);
+                    triggers[i + 1] = 10;
+                    triggers[i + 2] = "D" + random.nextInt(30);
+                }
+                var props = sensorProps(0x08, triggers);
+                registry.put(hub.new EnvSensor(address, name, props[0], ByteBuffer.wrap(props, 1, props.length - 1)));
+            } else if (action == 2) {
+                var device = registry.remove(address);
+                if (device != null) {
+                    removed.add(device);
+                }
+            } else {
+                var device = registry.removeByName(name);
+                if (device != null) {
+                    removed.add(device);
+                }
+            }
+            for (var device : registry.values()) {
+                for (var target : device.targets) {
+                    check(target.device == registry.getByName(target.name), "step " + step + ": " + device.name
+                            + " -> " + target.name + " is stale");
+                }
+            }
+            for (var device : removed) {
+                for (var target : device.targets) {
+                    check(target.device == null, "step " + step + ": removed " + device.name + " keeps a link");
+                }
+            }
+            removed.removeIf(device -> random.nextInt(8) == 0);
+        }
+    }
+
+    // ---------- Объединение команд ----------
+
+    /**
+     * STATUS, которого хаб не ждал, не закрывает отправленный SETSTATUS: в конвейерном режиме ожидание
+     * ответа регистрируется после разбора текущего ответа, и до этого команда всё ещё в пути
+     */
+    private static void unsolicitedStatusKeepsCommand() {
+        var hub = newHub();
+        var packets = new SmartHomeHubPackets();
+        hub.start();
+        hub.replayRequest(false);
+        packets.tick(1000);
+        packets.iAmHere(1, 0x04, "LAMP", new byte[0]);
+        packets.iAmHere(2, 0x03, "SW", SmartHomeHubPackets.switchProps("LAMP"));
+        hub.processResponse(packets.toBase64());
+        hub.replayRequest(false);
+
+        packets.status(1, 0x04, (byte) 0);
+        packets.status(2, 0x03, (byte) 1);
+        packets.tick(1100);
+        hub.processResponse(packets.toBase64());
+        // Запрос с командой уже ушёл, ожидание его ответа ещё не зарегистрировано
+        check(setStatuses(hub.replayRequest(true)).equals(List.of("1:01")), "switch turns the lamp on");
+        var lamp = hub.devices.get((short) 1);
+
+        packets.status(1, 0x04, (byte) 0);
+        packets.tick(1150);
+        hub.replayResponse(packets.toBase64());
+        check(lamp.requestsInFlight == 1, "unsolicited STATUS does not close the command: " + lamp.requestsInFlight);
+
+        // Ответ на саму команду закрывает её
+        hub.replayRequest(false);
+        packets.status(1, 0x04, (byte) 1);
+        packets.tick(1200);
+        hub.processResponse(packets.toBase64());
+        check(lamp.requestsInFlight == 0, "the reply closes the command: " + lamp.requestsInFlight);
+    }
+
+    // ---------- Триггеры ----------
+
+    // Байт операции триггера: включить, "больше", тип датчика
+    private static int triggerOp(boolean on, boolean more, int sensorType) {
+        return (on ? 0x01 : 0) | (more ? 0x02 : 0) | sensorType << 2;
+    }
+
+    private static byte[] sensorProps(int sensors, Object... triggers) {
+        var buffer = ByteBuffer.allocate(512);
+        buffer.put((byte) sensors);
+        buffer.put((byte) (triggers.length / 3));
+        for (int i = 0; i < triggers.length; i += 3) {
+            buffer.put((byte) (int) (Integer) triggers[i]);
+            SmartHomeHub.writeULEB128(buffer, (Integer) triggers[i + 1]);
+            SmartHomeHubPackets.putString(buffer, (String) triggers[i + 2]);
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static byte[] sensorStatus(int... values) {
+        var buffer = ByteBuffer.allocate(64);
+        buffer.put((byte) values.length);
+        for (int value : values) {
+            SmartHomeHub.writeULEB128(buffer, value);
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Датчик объявился и прислал показание раньше своей цели: команда не теряется,
+     * а уходит, как только лампа зарегистрируется, без нового пересечения порога
+     */
+    private static void sensorBeforeLamp() {
+        for (int shards : new int[]{1, 3}) {
+            var options = new SmartHomeHub.Options();
+            options.shards = shards;
+            var hub = newHub(options);
+            var mode = " (shards " + shards + ")";
+            hub.start();
+            hub.replayRequest(false);
+
+            var packets = new SmartHomeHubPackets();
+            packets.tick(1000);
+            // Загрязнение воздуха меньше 40 - включить LAMP
+            packets.iAmHere(2, 0x02, "SENSOR", sensorProps(0x08, triggerOp(true, false, 3), 40, "LAMP"));
+            hub.processResponse(packets.toBase64());
+            hub.replayRequest(false);
+
+            packets.status(2, 0x02, sensorStatus(30));
+            packets.tick(1100);
+            hub.processResponse(packets.toBase64());
+            check(setStatuses(hub.replayRequest(false)).isEmpty(), "no command while LAMP is unknown" + mode);
+
+            // Показание не меняется, лампа появляется позже
+            packets.status(2, 0x02, sensorStatus(30));
+            packets.tick(1200);
+            hub.processResponse(packets.toBase64());
+            hub.replayRequest(false);
+            packets.whoIsHere(1, 0x04, "LAMP");
+            packets.tick(1300);
+            hub.processResponse(packets.toBase64());
+            check(setStatuses(hub.replayRequest(false)).equals(List.of("1:01")), "LAMP is switched on after joining" + mode);
+
+            // Сработавший триггер больше не шлёт команду на тех же показаниях
+            packets.status(1, 0x04, (byte) 1);
+            packets.status(2, 0x02, sensorStatus(25));
+            packets.tick(1400);
+            hub.processResponse(packets.toBase64());
+            check(setStatuses(hub.replayRequest(false)).isEmpty(), "trigger does not repeat" + mode);
+        }
+    }
+
+    /**
+     * Датчик загрязнения воздуха с заданными триггерами и зарегистрированными целями
+     *
+     * @param options параметры с гистерезисом и выдержкой для датчика "S"
+     * @param triggers тройки: байт операции, порог, имя цели
+     */
+    private static SmartHomeHub.EnvSensor airSensor(SmartHomeHub.Options options, Object... triggers) {
+        var hub = newHub(options);
+        var props = sensorProps(0x08, triggers);
+        var sensor = hub.new EnvSensor((short) 2, "S", props[0], ByteBuffer.wrap(props, 1, props.length - 1));
+        for (var target : sensor.targets) {
+            target.device = hub.new Lamp();
+        }
+        return sensor;
+    }
+
+    private static SmartHomeHub.Options triggerOptions(int hysteresis, long dwell) {
+        var options = new SmartHomeHub.Options();
+        options.triggerHysteresis = hysteresis;
+        options.triggerDwell = dwell;
+        return options;
+    }
+
+    // Новое показание и номера сработавших триггеров
+    private static List<Integer> fire(SmartHomeHub.EnvSensor sensor, int pollution, long now) {
+        sensor.airPollution = pollution;
+        int count = sensor.checkTriggers(now);
+        var result = new ArrayList<Integer>();
+        for (int i = 0; i < count; i++) {
+            result.add(sensor.fired[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Границы полосы гистерезиса: "больше 50" снова взводится на 45 и ниже, "меньше 50" - на 55 и выше
+     */
+    private static void hysteresisBand() {
+        var more = airSensor(triggerOptions(5, 0), triggerOp(true, true, 3), 50, "LAMP");
+        check(fire(more, 50, 0).isEmpty(), "> 50 does not hold on 50");
+        check(fire(more, 51, 100).equals(List.of(0)), "> 50 fires on 51");
+        check(fire(more, 46, 200).isEmpty() && fire(more, 51, 300).isEmpty(), "46 is inside the band");
+        check(fire(more, 45, 400).isEmpty() && fire(more, 51, 500).equals(List.of(0)), "45 rearms > 50");
+
+        var less = airSensor(triggerOptions(5, 0), triggerOp(true, false, 3), 50, "LAMP");
+        check(fire(less, 50, 0).isEmpty(), "< 50 does not hold on 50");
+        check(fire(less, 49, 100).equals(List.of(0)), "< 50 fires on 49");
+        check(fire(less, 54, 200).isEmpty() && fire(less, 49, 300).isEmpty(), "54 is inside the band");
+        check(fire(less, 55, 400).isEmpty() && fire(less, 49, 500).equals(List.of(0)), "55 rearms < 50");
+
+        // Без гистерезиса триггер взводится на самом пороге
+        var plain = airSensor(triggerOptions(0, 0), triggerOp(true, true, 3), 50, "LAMP");
+        check(fire(plain, 51, 0).equals(List.of(0)), "> 50 fires on 51 without hysteresis");
+        check(fire(plain, 50, 100).isEmpty() && fire(plain, 51, 200).equals(List.of(0)), "50 rearms > 50");
+    }
+
+    /**
+     * Выдержка кончается ровно через dwell мс по времени TICK
+     */
+    private static void dwellExpiry() {
+        var sensor = airSensor(triggerOptions(0, 200), triggerOp(true, true, 3), 50, "LAMP");
+        check(fire(sensor, 60, 1000).isEmpty() && sensor.dwelling(), "condition starts the dwell");
+        check(fire(sensor, 60, 1199).isEmpty() && sensor.dwelling(), "dwell has not expired at 199 ms");
+        check(fire(sensor, 60, 1200).equals(List.of(0)) && !sensor.dwelling(), "dwell expires at 200 ms");
+        check(fire(sensor, 61, 1300).isEmpty(), "fired trigger waits for the band");
+    }
+
+    /**
+     * Условие нарушилось во время выдержки: триггер снова взведён, и выдержка начинается заново
+     */
+    private static void pendingFallsBack() {
+        var sensor = airSensor(triggerOptions(10, 200), triggerOp(true, true, 3), 50, "LAMP");
+        check(fire(sensor, 60, 1000).isEmpty() && sensor.dwelling(), "condition starts the dwell");
+        // 45 внутри полосы гистерезиса, но условие уже ложно
+        check(fire(sensor, 45, 1100).isEmpty() && !sensor.dwelling(), "pending trigger falls back to armed");
+        check(fire(sensor, 60, 1150).isEmpty() && sensor.dwelling(), "condition restarts the dwell");
+        check(fire(sensor, 60, 1349).isEmpty(), "dwell counts from the restart");
+        check(fire(sensor, 60, 1350).equals(List.of(0)), "restarted dwell expires");
+    }
+
+    /**
+     * Триггеры на случайных показаниях против прямого автомата состояний по каждому триггеру:
+     * пороговые индексы и перепроверка выдерживающих триггеров дают те же срабатывания
+     */
+    private static void triggersMatchStateModel() {
+        var random = new Random(22);
+        for (int iteration = 0; iteration < 2000; iteration++) {
+            int n = 1 + random.nextInt(8);
+            var options = new SmartHomeHub.Options();
+            int[] ops = new int[n];
+            int[] values = new int[n];
+            int[] hysteresis = new int[n];
+            long[] dwell = new long[n];
+            var triggers = new Object[n * 3];
+            for (int i = 0; i < n; i++) {
+                ops[i] = random.nextInt(16);
+                values[i] = random.nextInt(50);
+                hysteresis[i] = random.nextInt(3) == 0 ? 0 : random.nextInt(10);
+                dwell[i] = random.nextInt(3) == 0 ? 0 : random.nextInt(400);
+                options.triggerSettings.put("S:" + i, new long[]{hysteresis[i], dwell[i]});
+                triggers[i * 3] = ops[i];
+                triggers[i * 3 + 1] = values[i];
+                triggers[i * 3 + 2] = "T" + i;
+            }
+            var hub = newHub(options);
+            var props = sensorProps(0x0F, triggers);
+            var sensor = hub.new EnvSensor((short) 2, "S", props[0], ByteBuffer.wrap(props, 1, props.length - 1));
+            int[] states = new int[n];
+            long[] since = new long[n];
+            long now = 0;
+            for (int step = 0; step < 60; step++) {
+                now += 100;
+                // Цели то пропадают, то появляются
+                for (var target : sensor.targets) {
+                    target.device = random.nextInt(4) == 0 ? null : hub.new Lamp();
+                }
+                if (random.nextInt(3) > 0) {
+                    sensor.temperature = random.nextInt(60);
+                    sensor.humidity = random.nextInt(60);
+                    sensor.illumination = random.nextInt(60);
+                    sensor.airPollution = random.nextInt(60);
+                }
+                int[] readings = {sensor.temperature, sensor.humidity, sensor.illumination, sensor.airPollution};
+                var expected = new ArrayList<Integer>();
+                for (int i = 0; i < n; i++) {
+                    boolean more = (ops[i] & 0x02) != 0;
+                    int reading = readings[ops[i] >> 2 & 0x03];
+                    boolean holds = more ? reading > values[i] : reading < values[i];
+                    boolean outside = more ? reading <= values[i] - hysteresis[i] : reading >= values[i] + hysteresis[i];
+                    boolean bound = sensor.targets[i].device != null;
+                    if (states[i] == 2 && outside) {
+                        states[i] = 0;
+                    } else if (states[i] == 1 && !holds) {
+                        states[i] = 0;
+                    } else if (states[i] == 1 && now - since[i] >= dwell[i] && bound) {
+                        states[i] = 2;
+                        expected.add(i);
+                    } else if (states[i] == 0 && holds) {
+                        if (dwell[i] == 0 && bound) {
+                            states[i] = 2;
+                            expected.add(i);
+                        } else {
+                            states[i] = 1;
+                            since[i] = now;
+                        }
+                    }
+                }
+                int count = sensor.checkTriggers(now);
+                var actual = new ArrayList<Integer>();
+                for (int k = 0; k < count; k++) {
+                    actual.add(sensor.fired[k]);
+                }
+                check(actual.equals(expected), "iteration " + iteration + " step " + step + ": " + actual + " != " + expected);
+            }
+        }
+    }
+
+    /**
+     * Хаб с шардами отправляет те же команды, что и однопоточный, при гистерезисе, выдержке
+     * и позднем подключении одной из ламп
+     */
+    private static void shardsMatchLockStep() {
+        var lockStep = triggerScenario(1);
+        for (int shards : new int[]{2, 3}) {
+            var sharded = triggerScenario(shards);
+            check(sharded.equals(lockStep), "commands differ with " + shards + " shards");
+        }
+        check(lockStep.stream().mapToInt(List::size).sum() > 10, "scenario sends commands");
+    }
+
+    /**
+     * Конвейерный режим шлёт команды на обмен позже, но каждое устройство получает их в том же порядке,
+     * что и в пошаговом
+     */
+    private static void pipelinedMatchesLockStep() {
+        var lockStep = pipelineScenario(false);
+        var pipelined = pipelineScenario(true);
+        check(pipelined.equals(lockStep), "commands differ: " + lockStep + " vs " + pipelined);
+        for (long lamp = 1; lamp <= 3; lamp++) {
+            var commands = lockStep.getOrDefault(lamp, "");
+            check(commands.contains("0") && commands.contains("1"), "lamp " + lamp + " switched both ways: " + commands);
+        }
+        check(lockStep.get(4L).length() < lockStep.get(1L).length(), "silent lamp is dropped: " + lockStep.get(4L));
+    }
+
+    private static Map<Long, String> pipelineScenario(boolean pipelined) {
+        var options = new SmartHomeHub.Options();
+        options.pipelined = pipelined;
+        var network = new ModelNetwork(150);
+        int code = new SmartHomeHub(network, HUB_ADDRESS, options).run();
+        check(code == 0, "exit code " + code + (pipelined ? " (pipelined)" : ""));
+        var result = new TreeMap<Long, String>();
+        network.commands.forEach((address, commands) -> result.put(address, commands.toString()));
+        return result;
+    }
+
+    /**
+     * Модель сети для прогона hub.run(): переключатель на LAMP1, LAMP2 и молчащую LAMP4, датчик с триггерами
+     * на LAMP3.
+     * События зависят только от номера обмена, каждый ответ заканчивается TICK через 150мс, а устройства отвечают
+     * на команды через ответ. Хаб сверяет STATUS с предыдущим TICK, поэтому ответ приходит ровно на границе окна
+     * в 300мс и ожидание, записанное не с тем TICK, истекает. Команды каждому устройству записываются по порядку
+     */
+    private static class ModelNetwork implements SmartHomeHub.HubTransport {
+        private final int exchanges;
+        private final Random random = new Random(9);
+        private final SmartHomeHubPackets packets = new SmartHomeHubPackets();
+        private final Map<Integer, List<Runnable>> replies = new HashMap<>();
+        private final boolean[] lamps = new boolean[4];
+        private final Map<Long, StringBuilder> commands = new HashMap<>();
+        private boolean switchOn;
+        private int reading;
+        private int exchange;
+
+        ModelNetwork(int exchanges) {
+            this.exchanges = exchanges;
+        }
+
+        @Override
+        public int exchange(ByteBuffer request, SmartHomeHub.BodyConsumer body) {
+            if (++exchange > exchanges) {
+                return 204;
+            }
+            var due = replies.remove(exchange);
+            if (due != null) {
+                due.forEach(Runnable::run);
+            }
+            var bytes = new byte[request.remaining()];
+            request.get(bytes);
+            var buffer = ByteBuffer.wrap(Base64.getUrlDecoder().decode(bytes));
+            while (buffer.hasRemaining()) {
+                int length = buffer.get() & 0xFF;
+                var packet = buffer.slice(buffer.position(), length);
+                buffer.position(buffer.position() + length + 1);
+                SmartHomeHub.readULEB128(packet);
+                long dst = SmartHomeHub.readULEB128(packet);
+                SmartHomeHub.readULEB128(packet);
+                packet.get();
+                handle(dst, packet.get(), packet);
+            }
+            if (exchange % 9 == 4) {
+                switchOn = !switchOn;
+                packets.status(20, 0x03, (byte) (switchOn ? 1 : 0));
+            }
+            if (exchange % 2 == 0) {
+                reading = random.nextInt(50);
+                packets.status(30, 0x02, sensorStatus(reading));
+            }
+            packets.tick(1000 + 150L * exchange);
+            body.accept(packets.toBase64());
+            return 200;
+        }
+
+        private void handle(long dst, byte cmd, ByteBuffer body) {
+            if (cmd == 0x01) {
+                reply(() -> {
+                    packets.iAmHere(20, 0x03, "SWITCH", SmartHomeHubPackets.switchProps("LAMP1", "LAMP2", "LAMP4"));
+                    packets.iAmHere(30, 0x02, "SENSOR", sensorProps(0x08,
+                            triggerOp(true, true, 3), 30, "LAMP3",
+                            triggerOp(false, false, 3), 20, "LAMP3"));
+                    for (int lamp = 1; lamp <= 4; lamp++) {
+                        packets.iAmHere(lamp, 0x04, "LAMP" + lamp, new byte[0]);
+                    }
+                });
+                return;
+            }
+            var log = commands.computeIfAbsent(dst, address -> new StringBuilder());
+            if (cmd == 0x03) {
+                log.append('G');
+            } else if (cmd == 0x05) {
+                log.append(body.get(body.position()));
+                if (dst >= 1 && dst <= 3) {
+                    lamps[(int) dst] = body.get(body.position()) == 1;
+                }
+            } else {
+                return;
+            }
+            reply(() -> {
+                if (dst >= 1 && dst <= 3) {
+                    packets.status(dst, 0x04, (byte) (lamps[(int) dst] ? 1 : 0));
+                } else if (dst == 20) {
+                    packets.status(20, 0x03, (byte) (switchOn ? 1 : 0));
+                } else if (dst == 30) {
+                    packets.status(30, 0x02, sensorStatus(reading));
+                }
+            });
+        }
+
+        private void reply(Runnable packet) {
+            replies.computeIfAbsent(exchange + 2, key -> new ArrayList<>()).add(packet);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static List<List<String>> triggerScenario(int shards) {
+        var options = triggerOptions(4, 200);
+        options.shards = shards;
+        options.triggerSettings.put("S1:1", new long[]{0, 0});
+        var hub = newHub(options);
+        var random = new Random(21);
+        var packets = new SmartHomeHubPackets();
+        var commands = new ArrayList<List<String>>();
+        hub.start();
+        hub.replayRequest(false);
+        packets.tick(1000);
+        for (int sensor = 0; sensor < 3; sensor++) {
+            int lamp = 1 + sensor;
+            int other = 1 + (sensor + 1) % 3;
+            packets.iAmHere(10 + sensor, 0x02, "S" + sensor, sensorProps(0x0C,
+                    triggerOp(true, true, 2), 30, "LAMP" + lamp,
+                    triggerOp(false, false, 2), 20, "LAMP" + lamp,
+                    triggerOp(true, false, 3), 25, "LAMP" + other));
+        }
+        packets.iAmHere(1, 0x04, "LAMP1", new byte[0]);
+        packets.iAmHere(2, 0x04, "LAMP2", new byte[0]);
+        hub.processResponse(packets.toBase64());
+        hub.replayRequest(false);
+        long now = 1000;
+        for (int step = 0; step < 80; step++) {
+            now += 50 + random.nextInt(100);
+            if (step == 30) {
+                packets.whoIsHere(3, 0x04, "LAMP3");
+            }
+            for (int sensor = 0; sensor < 3; sensor++) {
+                packets.status(10 + sensor, 0x02, sensorStatus(random.nextInt(50), random.nextInt(50)));
+            }
+            for (int lamp = 1; lamp <= (step >= 30 ? 3 : 2); lamp++) {
+                packets.status(lamp, 0x04, (byte) random.nextInt(2));
+            }
+            packets.tick(now);
+            hub.processResponse(packets.toBase64());
+            commands.add(setStatuses(hub.replayRequest(false)));
+        }
+        return commands;
+    }
+
+    /**
+     * Отрицательные гистерезис и выдержка отклоняются при разборе параметров
+     */
+    private static void negativeTriggerSettings() {
+        for (var arg : new String[]{"--trigger-hysteresis=-1", "--trigger-dwell=-5", "--trigger=S:0:-1:0", "--trigger=S:0:0:-1"}) {
+            try {
+                SmartHomeHub.Options.parse(new String[]{arg}, 0);
+                throw new AssertionError("accepted " + arg);
+            } catch (IllegalArgumentException expected) {
+                // ожидаемо
+            }
+        }
+        var options = SmartHomeHub.Options.parse(new String[]{"--trigger-hysteresis=0", "--trigger=S:0:3:100"}, 0);
+        check(options.triggerHysteresis == 0 && options.triggerSettings.get("S:0")[1] == 100, "valid settings are kept");
+    }
+
+    // ---------- Колоночное хранилище показаний ----------
+
+    /**
+     * Сводки SensorReadings при случайных выделениях, освобождениях и записях слотов против
+     * прямого перебора живых датчиков
+     */
+    private static void readingsMatchSensorScan() {
+        var random = new Random(23);
+        var hub = newHub();
+        var readings = new SmartHomeHub.SensorReadings();
+        var live = new HashMap<Integer, SmartHomeHub.EnvSensor>();
+        for (int step = 0; step < 20000; step++) {
+            if (live.isEmpty() || random.nextInt(3) == 0) {
+                var sensor = hub.new EnvSensor((short) 1, "S", (byte) random.nextInt(16), ByteBuffer.allocate(0));
+                int slot = readings.allocate();
+                check(!live.containsKey(slot), "slot " + slot + " is allocated twice");
+                live.put(slot, sensor);
+            } else if (random.nextInt(4) == 0) {
+                int slot = new ArrayList<>(live.keySet()).get(random.nextInt(live.size()));
+                live.remove(slot);
+                readings.release(slot);
+            } else {
+                int slot = new ArrayList<>(live.keySet()).get(random.nextInt(live.size()));
+                var sensor = live.get(slot);
+                if (sensor.temperature != -1) {
+                    sensor.temperature = random.nextInt(1000);
+                }
+                if (sensor.humidity != -1) {
+                    sensor.humidity = random.nextInt(1000);
+                }
+                if (sensor.illumination != -1) {
+                    sensor.illumination = random.nextInt(1000);
+                }
+                if (sensor.airPollution != -1) {
+                    sensor.airPollution = random.nextInt(1000);
+                }
+                sensor.reported = true;
+                readings.store(slot, sensor);
+            }
+            for (int type = 0; type < 4; type++) {
+                int count = 0;
+                int max = -1;
+                int min = Integer.MAX_VALUE;
+                int more = 0;
+                int less = 0;
+                long sum = 0;
+                for (var sensor : live.values()) {
+                    int value = sensor.reading(type);
+                    if (!sensor.reported || value == -1) {
+                        continue;
+                    }
+                    count++;
+                    max = Math.max(max, value);
+                    min = Math.min(min, value);
+                    sum += value;
+                    more += value > 500 ? 1 : 0;
+                    less += value < 500 ? 1 : 0;
+                }
+                if (count == 0) {
+                    min = -1;
+                }
+                var at = "step " + step + " type " + type + ": ";
+                check(readings.count(type) == count, at + "count");
+                check(readings.min(type) == min && readings.max(type) == max, at + "min/max");
+                check(readings.sum(type) == sum, at + "sum");
+                check(readings.countMore(type, 500) == more && readings.countLess(type, 500) == less, at + "threshold counts");
+            }
+        }
+    }
+
+    // ---------- История показаний ----------
+
+    /**
+     * Выдача рядов в пределах бюджета, сырое кольцо и поминутные и почасовые корзины против
+     * прямой агрегации всех точек
+     */
+    private static void historyTiersMatch() {
+        var history = new SmartHomeHub.SensorHistory(3L * SmartHomeHub.SensorHistory.SERIES_BYTES + 10);
+        check(history.capacity() == 3, "budget fits 3 series");
+        int first = history.allocate();
+        int second = history.allocate();
+        int third = history.allocate();
+        check(history.allocate() == -1, "no series past the budget");
+        history.release(second);
+        check(history.allocate() == second, "released series is reused");
+
+        var random = new Random(24);
+        var points = new ArrayList<long[]>();
+        long time = 0;
+        for (int i = 0; i < 200000; i++) {
+            time += random.nextInt(3000);
+            int value = random.nextInt(1000);
+            history.append(second, time, value);
+            history.append(first, time, 7);
+            points.add(new long[]{time, value});
+        }
+        var times = new long[SmartHomeHub.SensorHistory.RAW_POINTS];
+        var values = new int[SmartHomeHub.SensorHistory.RAW_POINTS];
+        int raw = history.raw(second, times, values);
+        check(raw == SmartHomeHub.SensorHistory.RAW_POINTS, "raw ring is full");
+        for (int k = 0; k < raw; k++) {
+            var point = points.get(points.size() - raw + k);
+            check(times[k] == point[0] && values[k] == point[1], "raw point " + k);
+        }
+        for (var tier : new SmartHomeHub.SensorHistory.Tier[]{history.minutes, history.hours}) {
+            // Начало корзины -> минимум, максимум, сумма, число точек
+            var buckets = new TreeMap<Long, long[]>();
+            for (var point : points) {
+                var bucket = buckets.computeIfAbsent(point[0] - point[0] % tier.width,
+                        k -> new long[]{Long.MAX_VALUE, Long.MIN_VALUE, 0, 0});
+                bucket[0] = Math.min(bucket[0], point[1]);
+                bucket[1] = Math.max(bucket[1], point[1]);
+                bucket[2] += point[1];
+                bucket[3]++;
+            }
+            var starts = new long[tier.buckets];
+            var mins = new int[tier.buckets];
+            var maxs = new int[tier.buckets];
+            var avgs = new double[tier.buckets];
+            int count = tier.read(second, starts, mins, maxs, avgs);
+            check(count == tier.buckets, "tier " + tier.width + " is full");
+            var keys = new ArrayList<>(buckets.keySet()).subList(buckets.size() - count, buckets.size());
+            for (int k = 0; k < count; k++) {
+                var bucket = buckets.get(keys.get(k));
+                var at = "tier " + tier.width + " bucket " + k;
+                check(starts[k] == keys.get(k), at + " start");
+                check(mins[k] == bucket[0] && maxs[k] == bucket[1], at + " min/max");
+                check(Math.abs(avgs[k] - (double) bucket[2] / bucket[3]) < 1e-9, at + " mean");
+            }
+        }
+        check(history.raw(third, times, values) == 0, "untouched series is empty");
+    }
+
+    /**
+     * Ряды выделяются на первом STATUS; датчик, вытесненный в том же ответе, рядов не получает,
+     * а освободившиеся ряды достаются датчику, которому их раньше не хватило
+     */
+    private static void historySeriesOnFirstStatus() {
+        var hub = newHub();
+        var history = new SmartHomeHub.SensorHistory(2L * SmartHomeHub.SensorHistory.SERIES_BYTES);
+        hub.devices.history = history;
+        var packets = new SmartHomeHubPackets();
+        hub.start();
+        hub.replayRequest(false);
+        packets.tick(1000);
+        // Температура и влажность, только температура
+        packets.iAmHere(2, 0x02, "S1", new byte[]{0x03, 0});
+        packets.iAmHere(3, 0x02, "S2", new byte[]{0x01, 0});
+        hub.processResponse(packets.toBase64());
+        hub.replayRequest(false);
+        var first = (SmartHomeHub.EnvSensor) hub.devices.get((short) 2);
+        var second = (SmartHomeHub.EnvSensor) hub.devices.get((short) 3);
+        check(history.used() == 0, "no series before STATUS");
+
+        packets.status(2, 0x02, sensorStatus(21, 40));
+        packets.status(3, 0x02, sensorStatus(19));
+        packets.tick(1100);
+        hub.processResponse(packets.toBase64());
+        hub.replayRequest(false);
+        check(first.series[0] != -1 && first.series[1] != -1, "S1 gets both series");
+        check(second.series[0] == -1, "S2 is over the budget");
+
+        // S1 прислал STATUS и тут же вытеснен новым датчиком с тем же именем
+        packets.status(2, 0x02, sensorStatus(22, 41));
+        packets.whoIsHere(4, 0x02, "S1", new byte[]{0x01, 0});
+        packets.status(3, 0x02, sensorStatus(18));
+        packets.tick(1200);
+        hub.processResponse(packets.toBase64());
+        hub.replayRequest(false);
+        check(first.series[0] == -1 && first.series[1] == -1, "displaced S1 holds no series");
+        check(second.series[0] != -1 && history.used() == 1, "S2 takes a released series");
+        var times = new long[SmartHomeHub.SensorHistory.RAW_POINTS];
+        var values = new int[SmartHomeHub.SensorHistory.RAW_POINTS];
+        check(history.raw(second.series[0], times, values) == 1 && times[0] == 1200 && values[0] == 18,
+                "S2 history starts at its first recorded STATUS");
+    }
+
+    // ---------- Метрики ----------
+
+    /**
+     * Пакеты чужим адресатам и от отправителей вне диапазона не попадают в счётчик принятых
+     */
+    private static void countAfterAddressFilter() {
+        var hub = newHub();
+        var packets = new SmartHomeHubPackets();
+        hub.start();
+        hub.replayRequest(false);
+        long before = hub.metrics.packetsReceived[0x04].sum();
+        packets.packet(5, 0x123, 0x04, 0x04, ByteBuffer.allocate(1).put((byte) 1));
+        packets.packet(0x5000, HUB, 0x04, 0x04, ByteBuffer.allocate(1).put((byte) 1));
+        packets.status(5, 0x04, (byte) 1);
+        packets.tick(1000);
+        hub.processResponse(packets.toBase64());
+        check(hub.metrics.packetsReceived[0x04].sum() - before == 1, "only the STATUS to the hub is counted");
+    }
+
+    /**
+     * После остановки сервера метрик его поток завершается
+     */
+    private static void stopEndsServerThread() {
+        try {
+            int port;
+            try (var probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            var server = SmartHomeHub.startMetricsServer(new SmartHomeHub.Metrics(), port);
+            var connection = (HttpURLConnection) URI.create("http://127.0.0.1:" + port + "/metrics").toURL().openConnection();
+            check(connection.getResponseCode() == 200, "metrics are served");
+            connection.getInputStream().readAllBytes();
+            connection.disconnect();
+            check(metricsThreadAlive(), "server thread is running");
+            server.stop();
+            long deadline = System.nanoTime() + 2_000_000_000L;
+            while (metricsThreadAlive() && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            check(!metricsThreadAlive(), "server thread ends after stop");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AssertionError(e);
+        }
+    }
+
+    private static boolean metricsThreadAlive() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .anyMatch(thread -> thread.getName().equals("hub-metrics") && thread.isAlive());
+    }
+
+    // ---------- Журнал ----------
+
+    /**
+     * При ротации остаются только последние сегменты, в том числе после повторного открытия каталога
+     */
+    private static void journalSegmentRetention() {
+        try {
+            var directory = Files.createTempDirectory("journal");
+            try {
+                writeJournal(directory, 3);
+                var segments = segmentNames(directory);
+                check(segments.size() == 3, "3 segments are kept: " + segments);
+                int last = Integer.parseInt(segments.get(2).substring("journal-".length(), "journal-".length() + 6));
+                check(last > 3, "older segments were rotated out: " + segments);
+                check(segments.equals(List.of(String.format("journal-%06d.seg", last - 2),
+                        String.format("journal-%06d.seg", last - 1), String.format("journal-%06d.seg", last))),
+                        "the newest segments are kept: " + segments);
+
+                // Повторное открытие продолжает нумерацию и учитывает уже лежащие сегменты
+                writeJournal(directory, 2);
+                var reopened = segmentNames(directory);
+                check(reopened.size() == 2 && !reopened.contains(segments.get(2)), "reopened journal keeps 2: " + reopened);
+
+                // Без ограничения ничего не удаляется
+                int before = reopened.size();
+                writeJournal(directory, 0);
+                check(segmentNames(directory).size() > before + 3, "unlimited journal keeps everything");
+            } finally {
+                for (var segment : SmartHomeHub.Journal.segments(directory)) {
+                    Files.delete(segment);
+                }
+                Files.delete(directory);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Следующий сегмент журнала не создаётся: поток записи не умирает, потерянные ответы учитываются,
+     * а когда сегменты снова создаются, запись продолжается после отметки о пропуске
+     */
+    private static void journalSurvivesWriteFailures() {
+        try {
+            var directory = Files.createTempDirectory("journal");
+            var dropped = new LongAdder();
+            var packet = ByteBuffer.wrap(randomBytes(100, 1));
+            var blockers = new ArrayList<Path>();
+            var output = stderrOf(() -> {
+                try {
+                    var journal = new SmartHomeHub.Journal(directory, 256, 0, dropped, HUB, (byte) 0);
+                    // Каталоги на месте следующих сегментов: открыть сегмент не удастся
+                    for (int i = 2; i < 40; i++) {
+                        blockers.add(Files.createDirectory(directory.resolve(String.format("journal-%06d.seg", i))));
+                    }
+                    // Каждый ответ не помещается в сегмент из 256 байт
+                    for (int i = 0; i < 5; i++) {
+                        journal.inbound(packet, 0, packet.capacity(), i);
+                        journal.inbound(packet, 0, packet.capacity(), i);
+                        journal.responseEnd(i);
+                        Thread.sleep(20);
+                    }
+                    check(dropped.sum() > 0, "lost responses are counted");
+                    for (var blocker : blockers) {
+                        Files.delete(blocker);
+                    }
+                    long lost = dropped.sum();
+                    journal.inbound(packet, 0, packet.capacity(), 10);
+                    journal.responseEnd(10);
+                    journal.close();
+                    check(dropped.sum() == lost, "writing resumes once segments can be created");
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new AssertionError(e);
+                }
+            });
+            check(output.contains("journal write failed"), "the failure is reported: " + output);
+            // После каждого потерянного пакета записей - отметка о пропуске, за последней - целый ответ
+            var records = journalRecords(directory);
+            check(records.size() > 3 && records.subList(records.size() - 3, records.size()).equals(List.of(
+                    SmartHomeHub.Journal.GAP + ":0", SmartHomeHub.Journal.INBOUND + ":10",
+                    SmartHomeHub.Journal.RESPONSE_END + ":10")), "the response after recovery follows a gap: " + records);
+            for (var segment : SmartHomeHub.Journal.segments(directory)) {
+                Files.delete(segment);
+            }
+            Files.delete(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Записи всех сегментов журнала по порядку: "тип:время TICK"
+    private static List<String> journalRecords(Path directory) throws IOException {
+        var records = new ArrayList<String>();
+        for (var file : SmartHomeHub.Journal.segments(directory)) {
+            var segment = ByteBuffer.wrap(Files.readAllBytes(file));
+            segment.position(SmartHomeHub.Journal.SEGMENT_HEADER_SIZE);
+            while (segment.remaining() >= SmartHomeHub.Journal.RECORD_HEADER_SIZE) {
+                byte type = segment.get();
+                if (type == SmartHomeHub.Journal.END_OF_SEGMENT) {
+                    break;
+                }
+                long tick = segment.getLong();
+                int length = segment.getInt();
+                segment.position(segment.position() + length);
+                records.add(type + ":" + tick);
+            }
+        }
+        return records;
+    }
+
+    // Журнал из маленьких сегментов: каждый ответ - несколько сегментов
+    private static void writeJournal(Path directory, int maxSegments) throws IOException {
+        var journal = new SmartHomeHub.Journal(directory, 256, maxSegments, new LongAdder(), HUB, (byte) 0);
+        var packet = ByteBuffer.wrap(randomBytes(100, maxSegments));
+        for (int i = 0; i < 10; i++) {
+            journal.inbound(packet, 0, packet.capacity(), i);
+            journal.inbound(packet, 0, packet.capacity(), i);
+            journal.responseEnd(i);
+        }
+        journal.close();
+    }
+
+    private static List<String> segmentNames(Path directory) throws IOException {
+        return SmartHomeHub.Journal.segments(directory).stream().map(path -> path.getFileName().toString()).toList();
+    }
+
+    // ---------- NIO-транспорт ----------
+
+    /**
+     * NioTransport против HttpServer из JDK: тела фиксированной длины и chunked, ответ без тела,
+     * пропуск тела не-200 и переиспользование одного соединения
+     */
+    private static void nioAgainstHttpServer() {
+        try {
+            var server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            var remotePorts = new ConcurrentLinkedQueue<Integer>();
+            server.createContext("/", exchange -> {
+                remotePorts.add(exchange.getRemoteAddress().getPort());
+                var request = exchange.getRequestBody().readAllBytes();
+                var text = new String(request, StandardCharsets.US_ASCII);
+                // Ответ - тело запроса, повторённое несколько раз; способ отправки задаёт само тело
+                var reply = text.repeat(3).getBytes(StandardCharsets.US_ASCII);
+                switch (text.charAt(0)) {
+                    case 'F' -> {
+                        exchange.sendResponseHeaders(200, reply.length);
+                        exchange.getResponseBody().write(reply);
+                    }
+                    case 'C' -> {
+                        exchange.sendResponseHeaders(200, 0);
+                        var out = exchange.getResponseBody();
+                        for (int i = 0; i < reply.length; i += 7) {
+                            out.write(reply, i, Math.min(7, reply.length - i));
+                            out.flush();
+                        }
+                    }
+                    case 'N' -> exchange.sendResponseHeaders(204, -1);
+                    default -> {
+                        exchange.sendResponseHeaders(500, reply.length);
+                        exchange.getResponseBody().write(reply);
+                    }
+                }
+                exchange.close();
+            });
+            server.start();
+            try (var transport = new SmartHomeHub.NioTransport(
+                    URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/"))) {
+                var body = new ByteArrayOutputStream();
+                for (var request : new String[]{"F-short", "C-" + "x".repeat(20_000), "N", "E-skipped", "F-after-error",
+                        "C-c"}) {
+                    body.reset();
+                    int status = transport.exchange(ByteBuffer.wrap(request.getBytes(StandardCharsets.US_ASCII)),
+                            chunk -> collect(body, chunk));
+                    var expected = switch (request.charAt(0)) {
+                        case 'F', 'C' -> request.repeat(3);
+                        default -> "";
+                    };
+                    int expectedStatus = request.charAt(0) == 'N' ? 204 : request.charAt(0) == 'E' ? 500 : 200;
+                    check(status == expectedStatus, request + ": status " + status);
+                    check(body.toString(StandardCharsets.US_ASCII).equals(expected), request + ": body differs");
+                }
+            } finally {
+                server.stop(0);
+            }
+            check(remotePorts.size() == 6 && new HashSet<>(remotePorts).size() == 1,
+                    "all exchanges share one connection: " + remotePorts);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Ответ сценарного сервера: куски, которые пишутся отдельно, и закрыть ли соединение после них
+     */
+    private record RawReply(boolean close, String... pieces) {
+    }
+
+    /**
+     * NioTransport против сервера на сокетах, который отвечает заданными байтами: chunked с расширениями
+     * и трейлером по байту, тело до закрытия соединения, HTTP/1.0 и сервер, закрывший простаивающее соединение
+     */
+    private static void nioRawResponses() {
+        var replies = new ArrayDeque<RawReply>();
+        // chunked, разбитый по байту: размер в шестнадцатеричном виде, расширение, трейлер
+        var chunked = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5;ext=1\r\nhello\r\n1A\r\n" + "abcdefghijklmnopqrstuvwxyz" + "\r\n0\r\nX-Trailer: 1\r\n\r\n";
+        replies.add(new RawReply(false, chunked.split("")));
+        // Content-Length, заголовки и тело в разных кусках
+        replies.add(new RawReply(false, "HTTP/1.1 200 OK\r\nContent-Le", "ngth: 5\r\n\r\nfix", "ed"));
+        // Тело до закрытия соединения
+        replies.add(new RawReply(true, "HTTP/1.1 200 OK\r\nConnection: close\r\n\r\nuntil-", "close"));
+        // HTTP/1.0 без длины: тоже до закрытия
+        replies.add(new RawReply(true, "HTTP/1.0 200 OK\r\n\r\nold"));
+        // Ответ без Connection: close, но сервер закрывает соединение, пока оно простаивает
+        replies.add(new RawReply(true, "HTTP/1.1 200 OK\r\nContent-Length: 4\r\n\r\nidle"));
+        replies.add(new RawReply(false, "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nretry"));
+        var expected = List.of("helloabcdefghijklmnopqrstuvwxyz", "fixed", "until-close", "old", "idle", "retry");
+        try (var server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            var connections = new LongAdder();
+            var stub = new Thread(() -> serveRaw(server, replies, connections), "nio-stub");
+            stub.setDaemon(true);
+            stub.start();
+            try (var transport = new SmartHomeHub.NioTransport(URI.create("http://127.0.0.1:" + server.getLocalPort() + "/"))) {
+                var body = new ByteArrayOutputStream();
+                for (int i = 0; i < expected.size(); i++) {
+                    if (i == 5) {
+                        // Сервер уже закрыл соединение после "idle"; даём FIN дойти
+                        Thread.sleep(50);
+                    }
+                    body.reset();
+                    int status = transport.exchange(ByteBuffer.wrap(("request-" + i).getBytes(StandardCharsets.US_ASCII)),
+                            chunk -> collect(body, chunk));
+                    check(status == 200, "reply " + i + ": status " + status);
+                    check(body.toString(StandardCharsets.US_ASCII).equals(expected.get(i)),
+                            "reply " + i + ": " + body.toString(StandardCharsets.US_ASCII));
+                }
+            }
+            // Первые два ответа по одному соединению, дальше новое после каждого закрытия
+            check(connections.sum() == 4, "connections: " + connections.sum());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AssertionError(e);
+        }
+    }
+
+    // Сценарный сервер: на каждый запрос отвечает очередным RawReply
+    private static void serveRaw(ServerSocket server, ArrayDeque<RawReply> replies, LongAdder connections) {
+        try {
+            while (!replies.isEmpty()) {
+                try (var socket = server.accept()) {
+                    connections.increment();
+                    socket.setTcpNoDelay(true);
+                    var in = socket.getInputStream();
+                    var out = socket.getOutputStream();
+                    while (readRequest(in)) {
+                        var reply = replies.poll();
+                        for (var piece : reply.pieces()) {
+                            out.write(piece.getBytes(StandardCharsets.US_ASCII));
+                            out.flush();
+                            if (reply.pieces().length < 10) {
+                                Thread.sleep(2);
+                            }
+                        }
+                        if (reply.close()) {
+                            break;
+                        }
+                    }
+                }
+            }
+        } catch (IOException | InterruptedException ignored) {
+            // Сокет сервера закрыт проверкой
+        }
+    }
+
+    // Прочитать запрос целиком: заголовки и тело по Content-Length; false, если клиент закрыл соединение
+    private static boolean readRequest(InputStream in) throws IOException {
+        var head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b == -1) {
+                return false;
+            }
+            head.append((char) b);
+        }
+        int length = 0;
+        for (var line : head.toString().split("\r\n")) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                length = Integer.parseInt(line.substring(15).strip());
+            }
+        }
+        in.readNBytes(length);
+        return true;
+    }
+
+    private static void collect(ByteArrayOutputStream body, ByteBuffer chunk) {
+        var bytes = new byte[chunk.remaining()];
+        chunk.get(bytes);
+        body.writeBytes(bytes);
+    }
+
+    // ---------- Запуск нескольких хабов ----------
+
+    /**
+     * Порт метрик и файлы хаба не могут быть общими: ни в общих параметрах, ни одним значением у двух хабов
+     */
+    private static void launcherPerHubOptions() {
+        try {
+            var file = Files.createTempFile("hubs", ".txt");
+            try {
+                Files.writeString(file, "# хабы\nhttp://a 1 --snapshot=a.snap --metrics-port=9101\n\nhttp://b 2 --snapshot=b.snap\n");
+                var hubs = SmartHomeHubLauncher.readHubs(file, new String[]{"--stats", "--snapshot-every=5"});
+                check(hubs.size() == 2, "two hubs are read");
+                check(Arrays.equals(hubs.get(1), new String[]{"http://b", "2", "--snapshot=b.snap", "--stats", "--snapshot-every=5"}),
+                        "common args follow the hub's own");
+                for (var common : new String[]{"--metrics-port=9100", "--metrics-file=m.txt", "--snapshot=s",
+                        "--journal=j", "--history-file=h.csv"}) {
+                    check(rejected(file, common), "common " + common + " is rejected");
+                }
+                Files.writeString(file, "http://a 1 --journal=j\nhttp://b 2 --journal=j\n");
+                check(rejected(file), "shared journal is rejected");
+            } finally {
+                Files.delete(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static boolean rejected(Path file, String... common) throws IOException {
+        try {
+            SmartHomeHubLauncher.readHubs(file, common);
+            return false;
+        } catch (IllegalArgumentException expected) {
+            return true;
+        }
+    }
+
+    /**
+     * SETSTATUS в подготовленном запросе хаба
+     *
+     * @param request пакеты запроса без base64
+     * @return "адрес:тело" в шестнадцатеричном виде по порядку
+     */
+    private static List<String> setStatuses(ByteBuffer request) {
+        var result = new ArrayList<String>();
+        var buffer = request.duplicate();
+        while (buffer.hasRemaining()) {
+            int length = buffer.get() & 0xFF;
+            var packet = buffer.slice(buffer.position(), length);
+            buffer.position(buffer.position() + length + 1);
+            SmartHomeHub.readULEB128(packet);
+            long dst = SmartHomeHub.readULEB128(packet);
+            SmartHomeHub.readULEB128(packet);
+            packet.get();
+            if (packet.get() == 0x05) {
+                var body = new StringBuilder(Long.toHexString(dst)).append(':');
+                while (packet.hasRemaining()) {
+                    body.append(String.format("%02x", packet.get()));
+                }
+                result.add(body.toString());
+            }
+        }
+        return result;
+    }
+
+    // ---------- Вспомогательное ----------
+
+    /**
+     * Транспорт, отдающий заранее подготовленные ответы по порядку, а после последнего - 204
+     */
+    private static class ScriptedTransport implements SmartHomeHub.HubTransport {
+        private final ArrayDeque<ByteBuffer> responses = new ArrayDeque<>();
+        private final List<String> requests = new ArrayList<>();
+        private Random splits;
+        private int maxChunk;
+
+        ScriptedTransport respond(ByteBuffer response) {
+            responses.add(response);
+            return this;
+        }
+
+        // Отдавать ответы кусками случайной длины от 1 до maxChunk байт
+        ScriptedTransport split(Random random, int maxChunk) {
+            this.splits = random;
+            this.maxChunk = maxChunk;
+            return this;
+        }
+
+        @Override
+        public int exchange(ByteBuffer request, SmartHomeHub.BodyConsumer body) {
+            requests.add(StandardCharsets.US_ASCII.decode(request).toString());
+            var response = responses.poll();
+            if (response == null) {
+                return 204;
+            }
+            while (response.hasRemaining()) {
+                int size = splits == null ? response.remaining()
+                        : Math.min(response.remaining(), 1 + splits.nextInt(maxChunk));
+                body.accept(response.slice(response.position(), size));
+                response.position(response.position() + size);
+            }
+            return 200;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static SmartHomeHub newHub() {
+        return newHub(new SmartHomeHub.Options());
+    }
+
+    private static SmartHomeHub newHub(SmartHomeHub.Options options) {
+        return new SmartHomeHub(null, HUB_ADDRESS, options);
+    }
+}
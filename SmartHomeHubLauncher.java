@@ -0,0 +1,174 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Запуск нескольких хабов в одной JVM
+ * <p>
+ * Каждая строка файла описывает один хаб: URL сервера, адрес хаба и необязательные параметры,
+ * как у SmartHomeHub. Пустые строки и строки, начинающиеся с #, пропускаются.
+ * Общие параметры из командной строки добавляются к параметрам каждого хаба. Порт метрик и файлы
+ * (--metrics-port, --metrics-file, --snapshot, --journal, --history-file) у каждого хаба свои:
+ * в общих параметрах они отклоняются, как и одно значение у двух хабов.
+ * </p>
+ * <p>
+ * Запуск: java SmartHomeHubLauncher hubs.txt [--transport=http|nio] [--stats] ...
+ * </p>
+ * <p>
+ * Каждый хаб работает в своём потоке со своим состоянием; общих изменяемых данных у хабов нет.
+ * Если JVM поддерживает виртуальные потоки (Java 21+), хабы запускаются на них, иначе на обычных потоках.
+ * Хабы с транспортом http делят один HttpClient, то есть один поток выбора и общий пул соединений.
+ * В коде обмена нет synchronized, поэтому блокирующий ввод-вывод не закрепляет виртуальный поток
+ * за потоком-носителем. Конвейерный режим заводит на каждый хаб отдельный обычный поток ввода-вывода.
+ * </p>
+ * <p>
+ * Код возврата: 0, если все хабы завершились штатно, иначе 99.
+ * </p>
+ */
+public class SmartHomeHubLauncher {
+    // Параметры, значение которых не может быть общим у нескольких хабов
+    private static final List<String> PER_HUB_OPTIONS =
+            List.of("--metrics-port=", "--metrics-file=", "--snapshot=", "--journal=", "--history-file=");
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.exit(99);
+        }
+
+        List<String[]> hubs;
+        try {
+            hubs = readHubs(Path.of(args[0]), Arrays.copyOfRange(args, 1, args.length));
+        } catch (IOException e) {
+            System.exit(99);
+            return;
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(99);
+            return;
+        }
+
+        var executor = newHubExecutor();
+        var client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .executor(executor)
+                .build();
+
+        long started = System.nanoTime();
+        var results = new ArrayList<Future<Integer>>();
+        for (var hubArgs : hubs) {
+            results.add(executor.submit(() -> runHub(client, hubArgs)));
+        }
+
+        int exitCode = 0;
+        for (int i = 0; i < results.size(); i++) {
+            int code;
+            try {
+                code = results.get(i).get();
+            } catch (Exception e) {
+                code = 99;
+            }
+            System.err.println(hubs.get(i)[0] + " " + hubs.get(i)[1] + " exit=" + code);
+            if (code != 0) {
+                exitCode = 99;
+            }
+        }
+        System.err.printf("%d hubs finished in %d ms%n", hubs.size(), (System.nanoTime() - started) / 1_000_000);
+        executor.shutdownNow();
+        System.exit(exitCode);
+    }
+
+    /**
+     * Чтение списка хабов
+     *
+     * @param file   файл со списком хабов
+     * @param common общие параметры для всех хабов
+     * @return аргументы каждого хаба: URL, адрес и параметры
+     * @throws IOException              при ошибке чтения
+     * @throws IllegalArgumentException если порт метрик или файл хаба задан в общих параметрах или у двух хабов
+     */
+    static List<String[]> readHubs(Path file, String[] common) throws IOException {
+        for (var arg : common) {
+            if (isPerHubOption(arg)) {
+                throw new IllegalArgumentException("Per-hub option in common args: " + arg);
+            }
+        }
+        var hubs = new ArrayList<String[]>();
+        var used = new HashSet<String>();
+        for (var line : Files.readAllLines(file)) {
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            var fields = line.split("\\s+");
+            for (int i = 2; i < fields.length; i++) {
+                if (isPerHubOption(fields[i]) && !used.add(fields[i])) {
+                    throw new IllegalArgumentException("Option used by two hubs: " + fields[i]);
+                }
+            }
+            var hubArgs = Arrays.copyOf(fields, fields.length + common.length);
+            System.arraycopy(common, 0, hubArgs, fields.length, common.length);
+            hubs.add(hubArgs);
+        }
+        return hubs;
+    }
+
+    private static boolean isPerHubOption(String arg) {
+        for (var option : PER_HUB_OPTIONS) {
+            if (arg.startsWith(option)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Работа одного хаба до завершения
+     *
+     * @param client общий HttpClient
+     * @param args   URL сервера, адрес хаба и параметры
+     * @return код возврата хаба
+     */
+    private static int runHub(HttpClient client, String[] args) {
+        if (args.length < 2) {
+            return 99;
+        }
+        SmartHomeHub hub;
+        try {
+            var options = SmartHomeHub.Options.parse(args, 2);
+            var transport = options.transport.equals("http")
+                    ? new SmartHomeHub.HttpClientTransport(client, URI.create(args[0]))
+                    : SmartHomeHub.createTransport(options.transport, args[0]);
+            hub = new SmartHomeHub(transport, args[1], options);
+        } catch (Exception e) {
+            return 99;
+        }
+        return hub.run();
+    }
+
+    /**
+     * Исполнитель для хабов: по виртуальному потоку на хаб, если JVM их поддерживает
+     *
+     * @return исполнитель
+     */
+    private static ExecutorService newHubExecutor() {
+        try {
+            // Executors.newVirtualThreadPerTaskExecutor появился в Java 21, сборка идёт под Java 17
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                var thread = new Thread(runnable, "hub");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
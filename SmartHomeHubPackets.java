@@ -0,0 +1,95 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Сборка синтетического ответа сервера из пакетов для проверок и бенчмарков хаба
+ * <p>
+ * Адреса задаются значением ULEB128, чтобы можно было подать и недопустимые. STATUS адресуется хабу ef0.
+ * </p>
+ */
+class SmartHomeHubPackets {
+    static final short HUB = 0xef0;
+
+    private ByteBuffer packets = ByteBuffer.allocate(1024);
+
+    void tick(long timestamp) {
+        var body = ByteBuffer.allocate(16);
+        SmartHomeHub.writeULEB128(body, timestamp);
+        packet(0x3FF0, SmartHomeHub.BROADCASTING_ADDRESS, 0x06, 0x06, body);
+    }
+
+    void iAmHere(long src, int devType, String name, byte[] props) {
+        var body = ByteBuffer.allocate(256);
+        putString(body, name);
+        body.put(props);
+        packet(src, SmartHomeHub.BROADCASTING_ADDRESS, devType, 0x02, body);
+    }
+
+    void whoIsHere(long src, int devType, String name) {
+        whoIsHere(src, devType, name, new byte[0]);
+    }
+
+    void whoIsHere(long src, int devType, String name, byte[] props) {
+        var body = ByteBuffer.allocate(256);
+        putString(body, name);
+        body.put(props);
+        packet(src, SmartHomeHub.BROADCASTING_ADDRESS, devType, 0x01, body);
+    }
+
+    void status(long src, int devType, byte... status) {
+        var body = ByteBuffer.allocate(64);
+        body.put(status);
+        packet(src, HUB, devType, 0x04, body);
+    }
+
+    /**
+     * Пакет с произвольными адресами и телом
+     *
+     * @param body тело команды от начала буфера до position
+     */
+    void packet(long src, long dst, int devType, int cmd, ByteBuffer body) {
+        if (packets.remaining() < 512) {
+            var bigger = ByteBuffer.allocate(packets.capacity() * 2);
+            packets.flip();
+            bigger.put(packets);
+            packets = bigger;
+        }
+        int start = packets.position();
+        packets.put((byte) 0);
+        SmartHomeHub.writeULEB128(packets, src);
+        SmartHomeHub.writeULEB128(packets, dst);
+        SmartHomeHub.writeULEB128(packets, 1);
+        packets.put((byte) devType);
+        packets.put((byte) cmd);
+        packets.put(body.flip());
+        int length = packets.position() - start - 1;
+        packets.put(start, (byte) length);
+        packets.put(SmartHomeHub.Crc8.compute(packets, start + 1, length));
+    }
+
+    /**
+     * Накопленные пакеты в base64url без выравнивания; построитель после этого пуст
+     */
+    ByteBuffer toBase64() {
+        var bytes = new byte[SmartHomeHub.Base64Url.encodedLength(packets.position())];
+        int length = SmartHomeHub.Base64Url.encode(packets.array(), 0, packets.position(), bytes);
+        packets.clear();
+        return ByteBuffer.wrap(bytes, 0, length);
+    }
+
+    static void putString(ByteBuffer buffer, String value) {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.put((byte) bytes.length);
+        buffer.put(bytes);
+    }
+
+    static byte[] switchProps(String... targets) {
+        var buffer = ByteBuffer.allocate(512);
+        buffer.put((byte) targets.length);
+        for (var target : targets) {
+            putString(buffer, target);
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+}
@@ -0,0 +1,283 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Воспроизведение журнала пакетов хаба и записанных ответов сервера
+ * <p>
+ * Входящие пакеты каждого ответа из журнала снова проходят через processResponse нового хаба,
+ * а каждый исходящий запрос, который хаб готовит в тот же момент, сверяется с записанным.
+ * Так восстанавливается состояние хаба на момент любого события и проверяется, что хаб
+ * ведёт себя так же, как при записи.
+ * </p>
+ * <p>
+ * Запуск: java SmartHomeHubReplay каталог-журнала [--dump] [параметры хаба]
+ * </p>
+ * <p>
+ * С --dump в конце каждого запуска хаба печатается реестр устройств. Если начало журнала удалено
+ * при ротации сегментов, записи до первого START пропускаются. Параметры хаба, влияющие на его
+ * запросы (например, гистерезис и выдержка триггеров), должны совпадать с параметрами записи.
+ * Код возврата: 0, если все запросы совпали, 1 - при расхождении.
+ * </p>
+ * <p>
+ * Второй режим - прогон записанных ответов сервера без HTTP:
+ * java SmartHomeHubReplay --capture=файл [--address=ef0] [--repeat=N] [--out=файл|-|none] [параметры хаба]
+ * </p>
+ * <p>
+ * В файле по одному телу ответа в base64url на строку, как в примерах из README. Хаб работает
+ * своим обычным циклом опроса, только вместо HTTP стоит транспорт, который отдаёт ответы из файла
+ * по порядку, а после последнего возвращает 204. Каждый запрос хаба выводится строкой base64url,
+ * поэтому выводы двух сборок можно сравнить diff'ом; скорость печатается в stderr.
+ * </p>
+ */
+public class SmartHomeHubReplay {
+    private final boolean dump;
+    private final SmartHomeHub.Options options;
+    private SmartHomeHub hub;
+    private final SmartHomeHub.EncodeBuffer response = new SmartHomeHub.EncodeBuffer();
+
+    private long runs;
+    private long responses;
+    private long inbound;
+    private long requests;
+    private long mismatches;
+    private long gaps;
+    // Записи до первого START: начало журнала удалено при ротации сегментов
+    private long skipped;
+
+    private SmartHomeHubReplay(boolean dump, SmartHomeHub.Options options) {
+        this.dump = dump;
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: java SmartHomeHubReplay <journal-dir> [--dump] [hub options]");
+            System.err.println("       java SmartHomeHubReplay --capture=<file> [--address=ef0] [--repeat=N] [--out=file|-|none] [hub options]");
+            System.exit(2);
+        }
+        if (args[0].startsWith("--capture=")) {
+            System.exit(replayCapture(args));
+        }
+        // Первые два аргумента хаба - URL и адрес, параметры начинаются с третьего
+        var hubArgs = new ArrayList<String>(List.of("journal", "ef0"));
+        for (int i = 1; i < args.length; i++) {
+            if (!args[i].equals("--dump")) {
+                hubArgs.add(args[i]);
+            }
+        }
+        var replay = new SmartHomeHubReplay(Arrays.asList(args).contains("--dump"),
+                SmartHomeHub.Options.parse(hubArgs.toArray(new String[0]), 2));
+        long started = System.nanoTime();
+        for (var segment : SmartHomeHub.Journal.segments(Path.of(args[0]))) {
+            replay.replaySegment(segment);
+        }
+        replay.finishRun();
+        long elapsed = System.nanoTime() - started;
+
+        if (replay.skipped > 0) {
+            System.out.println("journal starts mid-run, " + replay.skipped + " records before the first START skipped");
+        }
+        System.out.printf("runs: %d, responses: %d, inbound packets: %d, requests: %d, mismatched requests: %d, gaps: %d%n",
+                replay.runs, replay.responses, replay.inbound, replay.requests, replay.mismatches, replay.gaps);
+        System.out.printf("replayed in %d ms (%.0f responses/s)%n",
+                elapsed / 1_000_000, replay.responses * 1e9 / Math.max(1, elapsed));
+        System.exit(replay.mismatches == 0 ? 0 : 1);
+    }
+
+    private void replaySegment(Path file) throws IOException {
+        ByteBuffer segment;
+        try (var channel = FileChannel.open(file)) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (segment.getInt() != SmartHomeHub.Journal.MAGIC || segment.getInt() != SmartHomeHub.Journal.VERSION) {
+            throw new IOException("Not a journal segment: " + file);
+        }
+        segment.position(SmartHomeHub.Journal.SEGMENT_HEADER_SIZE);
+
+        while (segment.remaining() >= SmartHomeHub.Journal.RECORD_HEADER_SIZE) {
+            var type = segment.get();
+            if (type == SmartHomeHub.Journal.END_OF_SEGMENT) {
+                return;
+            }
+            long tick = segment.getLong();
+            int length = segment.getInt();
+            var data = segment.slice(segment.position(), length);
+            segment.position(segment.position() + length);
+            replayRecord(type, tick, data);
+        }
+    }
+
+    private void replayRecord(byte type, long tick, ByteBuffer data) {
+        if (hub == null && type != SmartHomeHub.Journal.START) {
+            skipped++;
+            return;
+        }
+        switch (type) {
+            case SmartHomeHub.Journal.START -> {
+                finishRun();
+                var address = Integer.toHexString(data.getShort() & 0xFFFF);
+                if ((data.get() & SmartHomeHub.Journal.FLAG_RESTORED) != 0) {
+                    System.out.println("run " + (runs + 1) + " started from a snapshot, state may diverge");
+                }
+                hub = new SmartHomeHub(null, address, options);
+                hub.start();
+                runs++;
+            }
+            case SmartHomeHub.Journal.INBOUND -> {
+                response.reserve(data.remaining()).put(data);
+                inbound++;
+            }
+            case SmartHomeHub.Journal.RESPONSE_END -> {
+                hub.replayResponse(response.toBase64());
+                response.clear();
+                responses++;
+            }
+            case SmartHomeHub.Journal.OUTBOUND, SmartHomeHub.Journal.OUTBOUND_DEFERRED -> {
+                var actual = hub.replayRequest(type == SmartHomeHub.Journal.OUTBOUND_DEFERRED);
+                requests++;
+                if (!actual.equals(data)) {
+                    if (mismatches == 0) {
+                        System.out.printf("first mismatch at request %d (tick %d):%n  journal %s%n  replay  %s%n",
+                                requests, tick, hex(data), hex(actual));
+                    }
+                    mismatches++;
+                }
+            }
+            case SmartHomeHub.Journal.GAP -> {
+                // После сбоя записи перед отметкой могут остаться пакеты ответа без его конца
+                response.clear();
+                System.out.println("journal has a gap after response " + responses + ", state may diverge");
+                gaps++;
+            }
+            default -> throw new IllegalStateException("Unknown journal record type " + type);
+        }
+    }
+
+    private void finishRun() {
+        if (hub != null && dump) {
+            System.out.println("devices after run " + runs + ":");
+            for (var device : hub.devices.values()) {
+                System.out.println("  " + device);
+            }
+        }
+    }
+
+    /**
+     * Прогон записанных ответов сервера через обычный цикл опроса хаба
+     *
+     * @param args параметры командной строки
+     * @return код возврата хаба
+     */
+    private static int replayCapture(String[] args) throws IOException {
+        Path capture = null;
+        var address = "ef0";
+        int repeat = 1;
+        var out = "-";
+        // Первые два аргумента хаба - URL и адрес, параметры начинаются с третьего
+        var hubArgs = new ArrayList<String>(List.of("capture", "ef0"));
+        for (var arg : args) {
+            if (arg.startsWith("--capture=")) {
+                capture = Path.of(arg.substring("--capture=".length()));
+            } else if (arg.startsWith("--address=")) {
+                address = arg.substring("--address=".length());
+            } else if (arg.startsWith("--repeat=")) {
+                repeat = Integer.parseInt(arg.substring("--repeat=".length()));
+            } else if (arg.startsWith("--out=")) {
+                out = arg.substring("--out=".length());
+            } else {
+                hubArgs.add(arg);
+            }
+        }
+
+        var responses = new ArrayList<byte[]>();
+        for (var line : Files.readAllLines(capture, StandardCharsets.US_ASCII)) {
+            line = line.strip();
+            if (!line.isEmpty()) {
+                responses.add(line.getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+
+        var options = SmartHomeHub.Options.parse(hubArgs.toArray(new String[0]), 2);
+        var output = switch (out) {
+            case "none" -> OutputStream.nullOutputStream();
+            case "-" -> new BufferedOutputStream(System.out, 64 * 1024);
+            default -> new BufferedOutputStream(new FileOutputStream(out), 64 * 1024);
+        };
+        try (output) {
+            var transport = new CaptureTransport(responses, repeat, output);
+            var hub = new SmartHomeHub(transport, address, options);
+            long started = System.nanoTime();
+            int code = hub.run();
+            long elapsed = System.nanoTime() - started;
+            output.flush();
+
+            double seconds = Math.max(1, elapsed) / 1e9;
+            System.err.printf("exit code %d, responses: %d, requests: %d, outbound packets: %d%n",
+                    code, transport.served, transport.requests, transport.packets);
+            System.err.printf("%.1f ms, %.0f responses/s, %.1f MB/s of base64 input%n",
+                    elapsed / 1e6, transport.served / seconds, transport.inputBytes / seconds / (1024 * 1024));
+            return code;
+        }
+    }
+
+    /**
+     * Транспорт, отдающий записанные ответы по порядку и выводящий запросы хаба
+     */
+    private static class CaptureTransport implements SmartHomeHub.HubTransport {
+        private final List<byte[]> responses;
+        private final long total;
+        private final OutputStream output;
+        private long served;
+        private long requests;
+        private long packets;
+        private long inputBytes;
+
+        CaptureTransport(List<byte[]> responses, int repeat, OutputStream output) {
+            this.responses = responses;
+            this.total = (long) responses.size() * repeat;
+            this.output = output;
+        }
+
+        @Override
+        public int exchange(ByteBuffer request, SmartHomeHub.BodyConsumer body) throws IOException {
+            requests++;
+            output.write(request.array(), request.arrayOffset() + request.position(), request.remaining());
+            output.write('\n');
+            // Пакеты запроса считаются по длинам, без полного разбора
+            var packetBytes = Base64.getUrlDecoder().decode(request.duplicate());
+            for (int i = 0; i < packetBytes.limit(); i += (packetBytes.get(i) & 0xFF) + 2) {
+                packets++;
+            }
+
+            if (served == total) {
+                return 204;
+            }
+            var response = responses.get((int) (served++ % responses.size()));
+            inputBytes += response.length;
+            body.accept(ByteBuffer.wrap(response));
+            return 200;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static String hex(ByteBuffer buffer) {
+        var bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return HexFormat.of().formatHex(bytes);
+    }
+}
@@ -0,0 +1,490 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Нагрузочный симулятор сети умного дома
+ * <p>
+ * Поднимает в том же процессе HTTP-сервер, который ведёт себя как сеть устройств, и запускает хаб против него.
+ * Каждый запрос хаба - один шаг модельного времени длиной --tick мс, в конце каждого ответа идёт TICK.
+ * Устройства отвечают с задержкой --latency мс модельного времени, теряют команды с вероятностью --drop
+ * и портят контрольную сумму пакета с вероятностью --corrupt. Переключатели случайно переключаются,
+ * датчики присылают показания. Задержка меряется от TICK, с которым хаб получил переключение, до SETSTATUS
+ * целям переключателя: в модельном времени - разница TICK, в реальном - от отправки ответа с этим TICK
+ * до приёма запроса с командой. Команды по триггерам датчиков в задержку не входят.
+ * </p>
+ * <p>
+ * Пример: java SmartHomeSimulator --lamps=2000 --sockets=500 --switches=500 --sensors=500 --steps=2000
+ * Параметры хаба (--pipelined, --transport=...) передаются ему как есть.
+ * </p>
+ * <p>
+ * С --compare-shards=N сеть прогоняется дважды, в однопоточном режиме хаба и с N шардами,
+ * и проверяется, что каждое устройство получило от хаба одни и те же команды в том же порядке.
+ * </p>
+ */
+public class SmartHomeSimulator {
+    private static final short HUB = 0xef0;
+    private static final short CLOCK = 0x3FF0;
+    private static final byte ENV_SENSOR = 0x02;
+    private static final byte SWITCH = 0x03;
+    private static final byte LAMP = 0x04;
+    private static final byte SOCKET = 0x05;
+    private static final byte CLOCK_TYPE = 0x06;
+
+    // Параметры сети
+    private int lamps = 1000;
+    private int sockets = 200;
+    private int switches = 200;
+    private int sensors = 200;
+    private int targetsPerSwitch = 4;
+    private int triggersPerSensor = 4;
+    private long latency = 50;
+    private double dropRate = 0;
+    private double corruptRate = 0;
+    private long tick = 100;
+    private int steps = 1000;
+    private double switchRate = 0.05;
+    private int sensorPeriod = 5;
+    private long seed = 1;
+    private int compareShards;
+    private final List<String> hubArgs = new ArrayList<>();
+
+    private final Random random = new Random();
+    private final List<Device> devices = new ArrayList<>();
+    private final Device[] byAddress = new Device[0x4000];
+    private final List<Device> actuators = new ArrayList<>();
+
+    // Модельное время и ответы устройств, ждущие своего шага
+    private long time = 1_700_000_000_000L;
+    private int step;
+    private final ArrayDeque<Delayed> delayed = new ArrayDeque<>();
+    // Цели переключений текущего шага: момент отправки ответа проставляется после его записи
+    private final List<Device> awaitingTick = new ArrayList<>();
+    private ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+
+    // Статистика
+    private long packetsIn;
+    private long packetsOut;
+    private long badRequests;
+    private long dropped;
+    private long corrupted;
+    private long setStatuses;
+    private long[] simLatencies = new long[1024];
+    private long[] wallLatencies = new long[1024];
+    private int latencyCount;
+
+    /**
+     * Устройство сети
+     */
+    private static class Device {
+        short address;
+        byte type;
+        String name;
+        byte[] props = new byte[0];
+        int serial = 1;
+        boolean status;
+        int[] values;
+        // TICK, с которым хаб получил событие, после которого должен поменять состояние устройства (0 - не ждём),
+        // и момент отправки ответа с этим TICK
+        long expectedSince;
+        long expectedSinceNanos;
+        // Команды хаба устройству: G - GETSTATUS, 0/1 - SETSTATUS (пишутся только при сравнении)
+        final StringBuilder commands = new StringBuilder();
+    }
+
+    /**
+     * Пакет устройства, отложенный до момента времени
+     */
+    private record Delayed(long at, byte[] packet) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Без этого ответы встроенного сервера задерживаются алгоритмом Нейгла
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        var simulator = new SmartHomeSimulator();
+        simulator.parse(args);
+        if (simulator.compareShards < 2) {
+            simulator.run();
+            return;
+        }
+
+        simulator.hubArgs.removeIf(arg -> arg.startsWith("--shards="));
+        var sharded = new SmartHomeSimulator();
+        sharded.parse(args);
+        sharded.hubArgs.removeIf(arg -> arg.startsWith("--shards="));
+        sharded.hubArgs.add("--shards=" + simulator.compareShards);
+        simulator.run();
+        sharded.run();
+        System.exit(compare(simulator, sharded) ? 0 : 1);
+    }
+
+    /**
+     * Сравнение команд, полученных каждым устройством в двух прогонах
+     *
+     * @return true, если порядок команд совпал у всех устройств
+     */
+    private static boolean compare(SmartHomeSimulator expected, SmartHomeSimulator actual) {
+        long commands = 0;
+        for (int i = 0; i < expected.devices.size(); i++) {
+            var left = expected.devices.get(i);
+            var right = actual.devices.get(i);
+            if (!left.commands.toString().contentEquals(right.commands)) {
+                System.out.printf("per-device command order differs for %s: %s vs %s%n",
+                        left.name, left.commands, right.commands);
+                return false;
+            }
+            commands += left.commands.length();
+        }
+        System.out.printf("per-device command order identical with %d shards (%d commands)%n",
+                expected.compareShards, commands);
+        return true;
+    }
+
+    private void parse(String[] args) {
+        for (var arg : args) {
+            var eq = arg.indexOf('=');
+            var name = eq < 0 ? arg : arg.substring(0, eq);
+            var value = eq < 0 ? "" : arg.substring(eq + 1);
+            switch (name) {
+                case "--lamps" -> lamps = Integer.parseInt(value);
+                case "--sockets" -> sockets = Integer.parseInt(value);
+                case "--switches" -> switches = Integer.parseInt(value);
+                case "--sensors" -> sensors = Integer.parseInt(value);
+                case "--targets" -> targetsPerSwitch = Integer.parseInt(value);
+                case "--triggers" -> triggersPerSensor = Integer.parseInt(value);
+                case "--latency" -> latency = Long.parseLong(value);
+                case "--drop" -> dropRate = Double.parseDouble(value);
+                case "--corrupt" -> corruptRate = Double.parseDouble(value);
+                case "--tick" -> tick = Long.parseLong(value);
+                case "--steps" -> steps = Integer.parseInt(value);
+                case "--switch-rate" -> switchRate = Double.parseDouble(value);
+                case "--sensor-period" -> sensorPeriod = Integer.parseInt(value);
+                case "--seed" -> seed = Long.parseLong(value);
+                case "--compare-shards" -> compareShards = Integer.parseInt(value);
+                default -> hubArgs.add(arg);
+            }
+        }
+        if (lamps + sockets + switches + sensors >= CLOCK) {
+            throw new IllegalArgumentException("Too many devices for 14-bit addresses");
+        }
+    }
+
+    private void run() throws Exception {
+        random.setSeed(seed);
+        buildNetwork();
+
+        var server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+        var url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+
+        var args = new ArrayList<String>();
+        args.add(url);
+        args.add(Integer.toHexString(HUB));
+        args.addAll(hubArgs);
+        var options = SmartHomeHub.Options.parse(args.toArray(new String[0]), 2);
+        var hub = new SmartHomeHub(SmartHomeHub.createTransport(options.transport, url), args.get(1), options);
+
+        long started = System.nanoTime();
+        int code = hub.run();
+        long elapsed = System.nanoTime() - started;
+        server.stop(0);
+        report(code, elapsed);
+    }
+
+    /**
+     * Построение сети: лампы и розетки, переключатели на них и датчики с триггерами
+     */
+    private void buildNetwork() {
+        short address = 1;
+        for (int i = 0; i < lamps; i++) {
+            actuators.add(add(address++, LAMP, "LAMP" + i, new byte[0]));
+        }
+        for (int i = 0; i < sockets; i++) {
+            actuators.add(add(address++, SOCKET, "SOCKET" + i, new byte[0]));
+        }
+        for (int i = 0; i < switches; i++) {
+            var props = ByteBuffer.allocate(4096);
+            props.put((byte) targetsPerSwitch);
+            for (int j = 0; j < targetsPerSwitch; j++) {
+                putString(props, pickActuator().name);
+            }
+            add(address++, SWITCH, "SWITCH" + i, Arrays.copyOf(props.array(), props.position()));
+        }
+        for (int i = 0; i < sensors; i++) {
+            var props = ByteBuffer.allocate(4096);
+            // Все четыре датчика: температура, влажность, освещённость, загрязнение
+            props.put((byte) 0x0F);
+            props.put((byte) triggersPerSensor);
+            for (int j = 0; j < triggersPerSensor; j++) {
+                int op = (random.nextBoolean() ? 1 : 0) | (random.nextBoolean() ? 2 : 0) | random.nextInt(4) << 2;
+                props.put((byte) op);
+                SmartHomeHub.writeULEB128(props, 400 + random.nextInt(200));
+                putString(props, pickActuator().name);
+            }
+            var device = add(address++, ENV_SENSOR, "SENSOR" + i, Arrays.copyOf(props.array(), props.position()));
+            device.values = new int[]{500, 500, 500, 500};
+        }
+    }
+
+    private Device pickActuator() {
+        return actuators.get(random.nextInt(actuators.size()));
+    }
+
+    private Device add(short address, byte type, String name, byte[] props) {
+        var device = new Device();
+        device.address = address;
+        device.type = type;
+        device.name = name;
+        device.props = props;
+        devices.add(device);
+        byAddress[address] = device;
+        return device;
+    }
+
+    /**
+     * Обработка одного запроса хаба - один шаг модельного времени
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        var request = exchange.getRequestBody().readAllBytes();
+        long now = System.nanoTime();
+        out.clear();
+
+        if (step >= steps) {
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+            return;
+        }
+        step++;
+        time += tick;
+
+        try {
+            var packets = ByteBuffer.wrap(Base64.getUrlDecoder().decode(request));
+            while (packets.hasRemaining()) {
+                handlePacket(packets, now);
+            }
+        } catch (RuntimeException e) {
+            badRequests++;
+        }
+
+        // Отложенные ответы устройств, срок которых наступил
+        while (!delayed.isEmpty() && delayed.peekFirst().at() <= time) {
+            emit(delayed.pollFirst().packet());
+        }
+        generateEvents();
+
+        var body = ByteBuffer.allocate(16);
+        SmartHomeHub.writeULEB128(body, time);
+        emit(packet(CLOCK, SmartHomeHub.BROADCASTING_ADDRESS, 1, CLOCK_TYPE, (byte) 0x06, body));
+
+        var encoded = new byte[SmartHomeHub.Base64Url.encodedLength(out.position())];
+        int length = SmartHomeHub.Base64Url.encode(out.array(), 0, out.position(), encoded);
+        exchange.sendResponseHeaders(200, length);
+        exchange.getResponseBody().write(encoded, 0, length);
+        exchange.close();
+
+        long sent = System.nanoTime();
+        for (var device : awaitingTick) {
+            device.expectedSinceNanos = sent;
+        }
+        awaitingTick.clear();
+    }
+
+    /**
+     * Разбор одного пакета хаба и реакция устройств
+     */
+    private void handlePacket(ByteBuffer packets, long now) {
+        int length = packets.get() & 0xFF;
+        int start = packets.position();
+        var crc = packets.get(start + length);
+        packets.limit(start + length);
+        var payload = packets.slice();
+        packets.limit(packets.capacity()).position(start + length + 1);
+        if (crc != SmartHomeHub.Crc8.compute(payload, 0, length)) {
+            badRequests++;
+            return;
+        }
+        packetsIn++;
+
+        SmartHomeHub.readULEB128(payload);
+        var dst = (short) SmartHomeHub.readULEB128(payload);
+        SmartHomeHub.readULEB128(payload);
+        payload.get();
+        var cmd = payload.get();
+
+        if (cmd == 0x01) {
+            // WHOISHERE: все устройства представляются
+            for (var device : devices) {
+                var body = ByteBuffer.allocate(device.props.length + 256);
+                putString(body, device.name);
+                body.put(device.props);
+                reply(packet(device.address, SmartHomeHub.BROADCASTING_ADDRESS, device.serial++, device.type, (byte) 0x02, body));
+            }
+            return;
+        }
+        if (dst < 0 || dst >= byAddress.length || byAddress[dst] == null) {
+            return;
+        }
+        var device = byAddress[dst];
+        if (compareShards > 1 && (cmd == 0x03 || cmd == 0x05)) {
+            device.commands.append(cmd == 0x03 ? 'G' : payload.get(payload.position()) == 1 ? '1' : '0');
+        }
+        if (random.nextDouble() < dropRate) {
+            dropped++;
+            return;
+        }
+        if (cmd == 0x05) {
+            setStatuses++;
+            device.status = payload.get() == 1;
+            if (device.expectedSince != 0) {
+                recordLatency(time - device.expectedSince, now - device.expectedSinceNanos);
+                device.expectedSince = 0;
+            }
+        }
+        if (cmd == 0x03 || cmd == 0x05) {
+            reply(status(device, HUB));
+        }
+    }
+
+    /**
+     * Случайные события: переключатели и показания датчиков
+     */
+    private void generateEvents() {
+        for (var device : devices) {
+            if (device.type == SWITCH && random.nextDouble() < switchRate) {
+                device.status = !device.status;
+                expectTargets(device);
+                emit(status(device, SmartHomeHub.BROADCASTING_ADDRESS));
+            } else if (device.type == ENV_SENSOR && (step + device.address) % sensorPeriod == 0) {
+                for (int i = 0; i < device.values.length; i++) {
+                    device.values[i] = Math.max(0, device.values[i] + random.nextInt(41) - 20);
+                }
+                emit(status(device, SmartHomeHub.BROADCASTING_ADDRESS));
+            }
+        }
+    }
+
+    /**
+     * Запомнить TICK переключения для целей переключателя, состояние которых должно поменяться
+     */
+    private void expectTargets(Device switchDevice) {
+        var props = ByteBuffer.wrap(switchDevice.props);
+        int count = props.get() & 0xFF;
+        for (int i = 0; i < count; i++) {
+            var bytes = new byte[props.get() & 0xFF];
+            props.get(bytes);
+            var name = new String(bytes, StandardCharsets.US_ASCII);
+            for (var target : actuators) {
+                if (target.name.equals(name) && target.status != switchDevice.status && target.expectedSince == 0) {
+                    target.expectedSince = time;
+                    awaitingTick.add(target);
+                }
+            }
+        }
+    }
+
+    private byte[] status(Device device, short dst) {
+        var body = ByteBuffer.allocate(64);
+        if (device.type == ENV_SENSOR) {
+            body.put((byte) device.values.length);
+            for (int value : device.values) {
+                SmartHomeHub.writeULEB128(body, value);
+            }
+        } else {
+            body.put((byte) (device.status ? 1 : 0));
+        }
+        return packet(device.address, dst, device.serial++, device.type, (byte) 0x04, body);
+    }
+
+    /**
+     * Ответ устройства: сразу или через заданную задержку модельного времени
+     */
+    private void reply(byte[] packet) {
+        if (latency < tick) {
+            emit(packet);
+        } else {
+            delayed.addLast(new Delayed(time + latency, packet));
+        }
+    }
+
+    private void emit(byte[] packet) {
+        if (out.remaining() < packet.length) {
+            var bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + packet.length));
+            out.flip();
+            bigger.put(out);
+            out = bigger;
+        }
+        if (random.nextDouble() < corruptRate) {
+            corrupted++;
+            packet = packet.clone();
+            packet[packet.length - 1] ^= 0x5A;
+        }
+        out.put(packet);
+        packetsOut++;
+    }
+
+    private static byte[] packet(short src, short dst, long serial, byte type, byte cmd, ByteBuffer body) {
+        var buffer = ByteBuffer.allocate(body.position() + 32);
+        buffer.put((byte) 0);
+        SmartHomeHub.writeULEB128(buffer, src);
+        SmartHomeHub.writeULEB128(buffer, dst);
+        SmartHomeHub.writeULEB128(buffer, serial);
+        buffer.put(type);
+        buffer.put(cmd);
+        buffer.put(body.flip());
+        int length = buffer.position() - 1;
+        buffer.put(0, (byte) length);
+        buffer.put(SmartHomeHub.Crc8.compute(buffer, 1, length));
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        var bytes = value.getBytes(StandardCharsets.US_ASCII);
+        buffer.put((byte) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void recordLatency(long simMillis, long wallNanos) {
+        if (latencyCount == simLatencies.length) {
+            simLatencies = Arrays.copyOf(simLatencies, latencyCount * 2);
+            wallLatencies = Arrays.copyOf(wallLatencies, latencyCount * 2);
+        }
+        simLatencies[latencyCount] = simMillis;
+        wallLatencies[latencyCount] = wallNanos / 1000;
+        latencyCount++;
+    }
+
+    private void report(int code, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("hub exit code %d after %d steps in %.2f s%n", code, step, seconds);
+        System.out.printf("devices: %d lamps, %d sockets, %d switches, %d sensors%n", lamps, sockets, switches, sensors);
+        System.out.printf("packets to hub: %d (%.0f/s), packets from hub: %d (%.0f/s), steps: %.0f/s%n",
+                packetsOut, packetsOut / seconds, packetsIn, packetsIn / seconds, step / seconds);
+        System.out.printf("SETSTATUS: %d, dropped: %d, corrupted: %d, bad hub packets: %d%n",
+                setStatuses, dropped, corrupted, badRequests);
+        System.out.printf("TICK with switch event -> SETSTATUS latency (%d samples): model ms %s, wall us %s%n",
+                latencyCount, percentiles(simLatencies), percentiles(wallLatencies));
+    }
+
+    private String percentiles(long[] values) {
+        if (latencyCount == 0) {
+            return "-";
+        }
+        var sorted = Arrays.copyOf(values, latencyCount);
+        Arrays.sort(sorted);
+        return "p50=" + sorted[(int) (latencyCount * 0.50)] +
+                " p90=" + sorted[(int) (latencyCount * 0.90)] +
+                " p99=" + sorted[(int) (latencyCount * 0.99)] +
+                " max=" + sorted[latencyCount - 1];
+    }
+}